@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes a whole scrape of a {@link SyntheticRegistry} mapped by {@code cassandra-mappings.yaml}
+ * into a discarding stream. Run with {@code -prof gc} (the default of the {@code jmh} profile)
+ * to get the allocation rate per scrape.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class EncoderBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int series;
+
+    @Param({"TEXT", "PROTOBUF"})
+    String format;
+
+    private PrometheusMetricsExporter exporter;
+    private ResponseFormat responseFormat;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        exporter = PrometheusMetricsExporterBuilder.newBuilder()
+                .registry(SyntheticRegistry.registry(series))
+                .httpPort(0)
+                .config(SyntheticRegistry.cassandraMappings())
+                .build();
+        responseFormat = "TEXT".equals(format) ? ResponseFormat.TEXT : ResponseFormat.PROTOBUF;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        exporter.stop();
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        SyntheticRegistry.DiscardingOutputStream out = new SyntheticRegistry.DiscardingOutputStream();
+        exporter.writeMetrics(responseFormat, out);
+        return out.bytes;
+    }
+}
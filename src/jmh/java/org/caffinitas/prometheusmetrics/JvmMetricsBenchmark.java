@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects and encodes the JVM metrics ({@link JvmMetrics}, {@link GcPauseMetrics} and
+ * {@link ProcMetrics}) like a scrape with {@code includeJvm} does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class JvmMetricsBenchmark {
+    @Param({"false", "true"})
+    boolean aggregateJvmThreads;
+
+    @Param({"TEXT", "PROTOBUF"})
+    String format;
+
+    private final List<MetricsContainer> containers = new ArrayList<>();
+    private GcPauseMetrics gcPauses;
+    private ProcMetrics procMetrics;
+    private ResponseFormat responseFormat;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ExporterConfig config = new ExporterConfig();
+        config.aggregateJvmThreads = aggregateJvmThreads;
+        JvmMetrics.register(containers::add, config);
+        gcPauses = new GcPauseMetrics();
+        gcPauses.registerMetrics(containers::add);
+        procMetrics = new ProcMetrics();
+        procMetrics.registerMetrics(containers::add);
+        responseFormat = "TEXT".equals(format) ? ResponseFormat.TEXT : ResponseFormat.PROTOBUF;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        gcPauses.close();
+        procMetrics.close();
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public long collect() throws IOException {
+        SyntheticRegistry.DiscardingOutputStream out = new SyntheticRegistry.DiscardingOutputStream();
+        Object output = responseFormat.createOutput(out);
+        for (MetricsContainer container : containers)
+            responseFormat.writeMetric(container, output);
+        responseFormat.finish(output);
+        return out.bytes;
+    }
+}
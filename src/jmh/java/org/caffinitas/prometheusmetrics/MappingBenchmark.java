@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up the mapping of one metric name per invocation, cycling through the names of a
+ * {@link SyntheticRegistry}, including the name and label templates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class MappingBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int series;
+
+    private MetricMappings mappings;
+    private String[] names;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ExporterConfig config = PrometheusMetricsExporterBuilder.loadConfig(SyntheticRegistry.cassandraMappings());
+        mappings = new MetricMappings(config.exclusions, config.mappings);
+        List<String> list = SyntheticRegistry.names(series);
+        names = list.toArray(new String[list.size()]);
+    }
+
+    @Benchmark
+    public Object match() {
+        int i = next;
+        next = i + 1 == names.length ? 0 : i + 1;
+        String name = names[i];
+        if (mappings.isExcluded(name))
+            return null;
+        MetricMappings.Match match = mappings.match(name);
+        if (match == null)
+            return null;
+        match.name();
+        return match.labels();
+    }
+}
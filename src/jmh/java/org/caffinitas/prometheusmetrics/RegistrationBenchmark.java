@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drops and re-creates the metrics of one table per invocation in a registry with {@code series}
+ * other metrics, which exercises the exporter's registry listener, the mapping of the names and
+ * the updates of the affected metrics containers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class RegistrationBenchmark {
+    private static final int CHURN_TABLES = 16;
+
+    @Param({"1000", "10000", "100000"})
+    int series;
+
+    private MetricRegistry registry;
+    private PrometheusMetricsExporter exporter;
+    private List<List<String>> tableNames;
+    private List<List<Metric>> tableMetrics;
+    private int table;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        registry = SyntheticRegistry.registry(series);
+        exporter = PrometheusMetricsExporterBuilder.newBuilder()
+                .registry(registry)
+                .httpPort(0)
+                .config(SyntheticRegistry.cassandraMappings())
+                .build();
+
+        tableNames = new ArrayList<>();
+        tableMetrics = new ArrayList<>();
+        for (int t = 0; t < CHURN_TABLES; t++) {
+            List<String> names = SyntheticRegistry.tableMetricNames("churn", "table" + t);
+            List<Metric> metrics = new ArrayList<>();
+            for (String name : names) {
+                Metric metric = SyntheticRegistry.metric(name);
+                metrics.add(metric);
+                registry.register(name, metric);
+            }
+            tableNames.add(names);
+            tableMetrics.add(metrics);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        exporter.stop();
+    }
+
+    @Benchmark
+    public void dropAndCreateTable() {
+        int t = table;
+        table = (t + 1) % CHURN_TABLES;
+        List<String> names = tableNames.get(t);
+        List<Metric> metrics = tableMetrics.get(t);
+        for (String name : names)
+            registry.remove(name);
+        for (int i = 0; i < names.size(); i++)
+            registry.register(names.get(i), metrics.get(i));
+    }
+}
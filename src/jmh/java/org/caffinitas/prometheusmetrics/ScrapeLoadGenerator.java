@@ -0,0 +1,383 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.codahale.metrics.MetricRegistry;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Starts an exporter for a {@link SyntheticRegistry} on localhost and scrapes it with concurrent
+ * HTTP clients, optionally while tables are created and dropped in the background. Reports the
+ * scrape latency percentiles, the response throughput and the CPU time, allocations and GC time
+ * of the exporter.
+ * <p>
+ * Build and run with the {@code jmh} profile, for example:
+ * </p>
+ * <pre>
+ * mvn -Pjmh clean test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-Xmx4g -classpath %classpath org.caffinitas.prometheusmetrics.ScrapeLoadGenerator \
+ *     --series=100000 --clients=8 --rate=1 --gzip=true --churn=10"
+ * </pre>
+ * <p>
+ * Options (with their defaults):
+ * </p>
+ * <ul>
+ *     <li>{@code --series=10000} number of codahale metrics in the registry</li>
+ *     <li>{@code --clients=4} number of concurrent scrapers</li>
+ *     <li>{@code --rate=0} scrapes per second of each client, {@code 0} scrapes back to back</li>
+ *     <li>{@code --duration=30} and {@code --warmup=10} measured and warm-up seconds</li>
+ *     <li>{@code --format=text} or {@code protobuf}</li>
+ *     <li>{@code --gzip=false}, {@code --keepAlive=true}, {@code --tls=false}</li>
+ *     <li>{@code --churn=0} tables created and dropped per second</li>
+ *     <li>{@code --includeJvm=false}, {@code --scrapeCacheMillis=0} exporter options</li>
+ * </ul>
+ */
+public final class ScrapeLoadGenerator {
+    private static final String PROTOBUF_ACCEPT = "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited";
+    private static final String TEXT_ACCEPT = "text/plain;version=0.0.4";
+
+    private static final String[] SERVER_THREAD_PREFIXES = {"prometheus-metrics-netty-", "prometheus-metrics-collector-"};
+
+    private final int series;
+    private final int clients;
+    private final double rate;
+    private final long durationSeconds;
+    private final long warmupSeconds;
+    private final boolean protobuf;
+    private final boolean gzip;
+    private final boolean keepAlive;
+    private final boolean tls;
+    private final double churn;
+    private final boolean includeJvm;
+    private final int scrapeCacheMillis;
+
+    private volatile boolean running = true;
+    private volatile boolean measuring;
+
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong churnedTables = new AtomicLong();
+
+    private ScrapeLoadGenerator(Map<String, String> options) {
+        series = Integer.parseInt(option(options, "series", "10000"));
+        clients = Integer.parseInt(option(options, "clients", "4"));
+        rate = Double.parseDouble(option(options, "rate", "0"));
+        durationSeconds = Long.parseLong(option(options, "duration", "30"));
+        warmupSeconds = Long.parseLong(option(options, "warmup", "10"));
+        protobuf = "protobuf".equalsIgnoreCase(option(options, "format", "text"));
+        gzip = Boolean.parseBoolean(option(options, "gzip", "false"));
+        keepAlive = Boolean.parseBoolean(option(options, "keepAlive", "true"));
+        tls = Boolean.parseBoolean(option(options, "tls", "false"));
+        churn = Double.parseDouble(option(options, "churn", "0"));
+        includeJvm = Boolean.parseBoolean(option(options, "includeJvm", "false"));
+        scrapeCacheMillis = Integer.parseInt(option(options, "scrapeCacheMillis", "0"));
+        if (!options.isEmpty())
+            throw new IllegalArgumentException("Unknown options " + options.keySet());
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.remove(name);
+        return value != null ? value : defaultValue;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq == -1)
+                throw new IllegalArgumentException("Options must be passed as --name=value, got '" + arg + '\'');
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        new ScrapeLoadGenerator(options).run();
+    }
+
+    private void run() throws Exception {
+        // HttpURLConnection keeps at most http.maxConnections idle connections per destination
+        System.setProperty("http.maxConnections", Integer.toString(Math.max(5, clients)));
+        if (tls)
+            trustAllCertificates();
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        MetricRegistry registry = SyntheticRegistry.registry(series);
+        PrometheusMetricsExporter exporter = PrometheusMetricsExporterBuilder.newBuilder()
+                .registry(registry)
+                .httpPort(port)
+                .ssl(tls)
+                .includeJvm(includeJvm)
+                .scrapeCacheMillis(scrapeCacheMillis)
+                .config(SyntheticRegistry.cassandraMappings())
+                .build();
+        URL url = new URL((tls ? "https" : "http") + "://127.0.0.1:" + port + "/metrics");
+
+        System.out.printf("%d series, %d clients at %s, %s, gzip %s, keep-alive %s, TLS %s, churn %s tables/s%n",
+                series, clients, rate > 0d ? rate + " scrapes/s" : "max rate", protobuf ? "protobuf" : "text",
+                gzip, keepAlive, tls, churn);
+
+        try {
+            List<Thread> threads = new ArrayList<>();
+            List<Scraper> scrapers = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                Scraper scraper = new Scraper(url);
+                scrapers.add(scraper);
+                threads.add(new Thread(scraper, "scraper-" + i));
+            }
+            if (churn > 0d)
+                threads.add(new Thread(() -> churn(registry), "churn"));
+            for (Thread thread : threads)
+                thread.start();
+
+            TimeUnit.SECONDS.sleep(warmupSeconds);
+
+            Usage before = new Usage();
+            long start = System.nanoTime();
+            measuring = true;
+            TimeUnit.SECONDS.sleep(durationSeconds);
+            measuring = false;
+            long elapsed = System.nanoTime() - start;
+            Usage after = new Usage();
+
+            running = false;
+            for (Thread thread : threads)
+                thread.join();
+
+            report(scrapers, elapsed, before, after);
+        } finally {
+            exporter.stop();
+        }
+    }
+
+    private void report(List<Scraper> scrapers, long elapsedNanos, Usage before, Usage after) {
+        int count = 0;
+        for (Scraper scraper : scrapers)
+            count += scraper.count;
+        long[] latencies = new long[count];
+        int n = 0;
+        for (Scraper scraper : scrapers) {
+            System.arraycopy(scraper.latencies, 0, latencies, n, scraper.count);
+            n += scraper.count;
+        }
+        Arrays.sort(latencies);
+
+        double seconds = elapsedNanos / 1e9d;
+        System.out.printf("scrapes:          %d (%.1f/s), %d errors%n", count, count / seconds, errors.get());
+        System.out.printf("latency ms:       p50 %.2f, p99 %.2f, p999 %.2f, max %.2f%n",
+                percentile(latencies, 0.5d), percentile(latencies, 0.99d), percentile(latencies, 0.999d),
+                percentile(latencies, 1d));
+        System.out.printf("throughput:       %.1f MB/s, %d bytes per scrape%n",
+                bytes.get() / seconds / 1e6d, count > 0 ? bytes.get() / count : 0L);
+        System.out.printf("exporter threads: %.2f CPU cores, %.1f MB/s allocated%n",
+                (after.serverCpuNanos - before.serverCpuNanos) / (double) elapsedNanos,
+                (after.serverAllocated - before.serverAllocated) / seconds / 1e6d);
+        System.out.printf("process:          %.2f CPU cores, %.1f MB/s allocated, %d GCs taking %d ms%n",
+                (after.processCpuNanos - before.processCpuNanos) / (double) elapsedNanos,
+                (after.allocated - before.allocated) / seconds / 1e6d,
+                after.gcCount - before.gcCount, after.gcMillis - before.gcMillis);
+        if (churn > 0d)
+            System.out.printf("churn:            %d tables created and dropped%n", churnedTables.get());
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return Double.NaN;
+        int i = Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, i)] / 1e6d;
+    }
+
+    /**
+     * Creates the metrics of a table and drops the metrics of the table created {@code 16} steps
+     * before, like schema changes of a busy cluster.
+     */
+    private void churn(MetricRegistry registry) {
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1L) / churn);
+        long next = System.nanoTime();
+        for (long table = 0; running; table++) {
+            for (String name : SyntheticRegistry.tableMetricNames("churn", "table" + table))
+                registry.register(name, SyntheticRegistry.metric(name));
+            if (table >= 16)
+                for (String name : SyntheticRegistry.tableMetricNames("churn", "table" + (table - 16)))
+                    registry.remove(name);
+            if (measuring)
+                churnedTables.incrementAndGet();
+
+            next += intervalNanos;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0L)
+                sleepNanos(sleep);
+        }
+    }
+
+    private static void sleepNanos(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class Scraper implements Runnable {
+        private final URL url;
+        private final byte[] buffer = new byte[65536];
+
+        long[] latencies = new long[1024];
+        int count;
+
+        Scraper(URL url) {
+            this.url = url;
+        }
+
+        @Override
+        public void run() {
+            long intervalNanos = rate > 0d ? (long) (TimeUnit.SECONDS.toNanos(1L) / rate) : 0L;
+            long next = System.nanoTime();
+            while (running) {
+                // with a fixed rate, latency is measured from the intended start of the scrape,
+                // so that a slow scrape also accounts for the scrapes it delayed
+                long start = intervalNanos > 0L ? next : System.nanoTime();
+                try {
+                    long received = scrape();
+                    long latency = System.nanoTime() - start;
+                    if (measuring) {
+                        bytes.addAndGet(received);
+                        if (count == latencies.length)
+                            latencies = Arrays.copyOf(latencies, count * 2);
+                        latencies[count++] = latency;
+                    }
+                } catch (IOException e) {
+                    if (measuring)
+                        errors.incrementAndGet();
+                }
+
+                if (intervalNanos > 0L) {
+                    next += intervalNanos;
+                    long sleep = next - System.nanoTime();
+                    if (sleep > 0L)
+                        sleepNanos(sleep);
+                }
+            }
+        }
+
+        /**
+         * Scrapes once and returns the number of (compressed) bytes received.
+         */
+        private long scrape() throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestProperty("Accept", protobuf ? PROTOBUF_ACCEPT : TEXT_ACCEPT);
+            if (gzip)
+                conn.setRequestProperty("Accept-Encoding", "gzip");
+            if (!keepAlive)
+                conn.setRequestProperty("Connection", "close");
+            long received = 0L;
+            try (InputStream in = conn.getInputStream()) {
+                if (conn.getResponseCode() != 200)
+                    throw new IOException("HTTP status " + conn.getResponseCode());
+                for (int rd; (rd = in.read(buffer)) >= 0; )
+                    received += rd;
+            }
+            if (!keepAlive)
+                conn.disconnect();
+            return received;
+        }
+    }
+
+    /**
+     * CPU time, allocated bytes and GC activity at one point in time.
+     */
+    private static final class Usage {
+        long serverCpuNanos;
+        long serverAllocated;
+        long processCpuNanos;
+        long allocated;
+        long gcCount;
+        long gcMillis;
+
+        Usage() {
+            com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long[] ids = threadMXBean.getAllThreadIds();
+            ThreadInfo[] infos = threadMXBean.getThreadInfo(ids);
+            long[] cpu = threadMXBean.getThreadCpuTime(ids);
+            long[] alloc = threadMXBean.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (infos[i] == null)
+                    continue;
+                allocated += Math.max(0L, alloc[i]);
+                if (isServerThread(infos[i].getThreadName())) {
+                    serverCpuNanos += Math.max(0L, cpu[i]);
+                    serverAllocated += Math.max(0L, alloc[i]);
+                }
+            }
+
+            processCpuNanos = ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                gcCount += Math.max(0L, gc.getCollectionCount());
+                gcMillis += Math.max(0L, gc.getCollectionTime());
+            }
+        }
+
+        private static boolean isServerThread(String name) {
+            for (String prefix : SERVER_THREAD_PREFIXES)
+                if (name.startsWith(prefix))
+                    return true;
+            return false;
+        }
+    }
+
+    private static void trustAllCertificates() throws Exception {
+        // the exporter uses a self signed certificate
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        HttpsURLConnection.setDefaultSSLSocketFactory(context.getSocketFactory());
+        HttpsURLConnection.setDefaultHostnameVerifier((hostname, session) -> true);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates codahale metrics named like the ones of a Cassandra node, so that all of them are
+ * mapped by {@code mappings/cassandra-mappings.yaml}. The node-wide metrics are followed by
+ * keyspaces of {@value #TABLES_PER_KEYSPACE} tables each, until the requested number of series
+ * is reached.
+ */
+final class SyntheticRegistry {
+    static final int TABLES_PER_KEYSPACE = 50;
+
+    private static final String PREFIX = "org.apache.cassandra.metrics.";
+
+    private static final String[] TABLE_METRICS = {
+            "AllMemtablesHeapSize", "BloomFilterDiskSpaceUsed", "BloomFilterFalsePositives", "BloomFilterFalseRatio",
+            "CasCommitLatency", "CasProposeLatency", "ColUpdateTimeDeltaHistogram", "CompressionRatio",
+            "CoordinatorReadLatency", "CoordinatorScanLatency", "EstimatedColumnCountHistogram",
+            "EstimatedPartitionCount", "EstimatedPartitionSizeHistogram", "KeyCacheHitRate", "LiveDiskSpaceUsed",
+            "LiveSSTableCount", "LiveScannedHistogram", "MaxPartitionSize", "MeanPartitionSize",
+            "MemtableColumnsCount", "MemtableLiveDataSize", "MemtableOnHeapSize", "MemtableSwitchCount",
+            "MinPartitionSize", "PendingCompactions", "PendingFlushes", "RangeLatency", "ReadLatency",
+            "RowCacheHit", "RowCacheMiss", "SSTablesPerReadHistogram", "SnapshotsSize", "SpeculativeRetries",
+            "TombstoneScannedHistogram", "TotalDiskSpaceUsed", "TrueSnapshotsSize", "WriteLatency"
+    };
+
+    private static final String[] COUNTERS = {
+            "BloomFilterFalsePositives", "MemtableSwitchCount", "RowCacheHit", "RowCacheMiss", "SpeculativeRetries",
+            "LiveDiskSpaceUsed", "TotalDiskSpaceUsed", "PendingFlushes", "CompletedTasks", "TotalBlockedTasks",
+            "Timeouts", "Unavailables", "Failures", "Dropped", "TotalTimeouts", "Attempted", "Hits", "Requests"
+    };
+
+    private SyntheticRegistry() {
+    }
+
+    static URL cassandraMappings() {
+        try {
+            return new File("mappings/cassandra-mappings.yaml").toURI().toURL();
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Names of {@code series} metrics, node-wide metrics first.
+     */
+    static List<String> names(int series) {
+        List<String> names = new ArrayList<>(series);
+        for (String pool : new String[]{"MutationStage", "ReadStage", "CompactionExecutor", "MemtableFlushWriter", "Native-Transport-Requests"})
+            for (String metric : new String[]{"ActiveTasks", "PendingTasks", "CompletedTasks", "TotalBlockedTasks"})
+                names.add(PREFIX + "ThreadPools." + metric + ".request." + pool);
+        for (String cache : new String[]{"KeyCache", "RowCache", "CounterCache"})
+            for (String metric : new String[]{"HitRate", "Hits", "Requests", "Size", "Entries"})
+                names.add(PREFIX + "Cache." + metric + '.' + cache);
+        for (String scope : new String[]{"Read", "Write", "RangeSlice", "CASRead", "CASWrite"})
+            for (String metric : new String[]{"Latency", "Timeouts", "Unavailables", "Failures"})
+                names.add(PREFIX + "ClientRequest." + metric + '.' + scope);
+        for (String verb : new String[]{"MUTATION", "READ", "RANGE_SLICE", "PAGED_RANGE", "HINT"})
+            names.add(PREFIX + "DroppedMessage.Dropped." + verb);
+        for (String metric : new String[]{"Compaction.PendingTasks", "CommitLog.PendingTasks", "Storage.Load",
+                "BufferPool.Size", "CQL.PreparedStatementsCount", "Client.connectedNativeClients", "ReadRepair.Attempted",
+                "DirectMemory.Used", "Client.RequestsInFlight", "Connection.TotalTimeouts"})
+            names.add(PREFIX + metric);
+        for (String metric : TABLE_METRICS)
+            names.add(PREFIX + "Table." + metric + ".all");
+
+        for (int ks = 0; names.size() < series; ks++) {
+            String keyspace = "ks" + ks;
+            for (int i = 0; i < TABLE_METRICS.length && names.size() < series; i++)
+                names.add(PREFIX + "keyspace." + TABLE_METRICS[i] + '.' + keyspace);
+            for (int t = 0; t < TABLES_PER_KEYSPACE; t++)
+                for (int i = 0; i < TABLE_METRICS.length && names.size() < series; i++)
+                    names.add(tableMetricName(TABLE_METRICS[i], keyspace, "table" + t));
+        }
+        return names.subList(0, series);
+    }
+
+    /**
+     * Names of the metrics of a single table, like a {@code CREATE TABLE} registers them.
+     */
+    static List<String> tableMetricNames(String keyspace, String table) {
+        List<String> names = new ArrayList<>(TABLE_METRICS.length);
+        for (String metric : TABLE_METRICS)
+            names.add(tableMetricName(metric, keyspace, table));
+        return names;
+    }
+
+    private static String tableMetricName(String metric, String keyspace, String table) {
+        return PREFIX + "Table." + metric + '.' + keyspace + '.' + table;
+    }
+
+    static MetricRegistry registry(int series) {
+        MetricRegistry registry = new MetricRegistry();
+        for (String name : names(series))
+            registry.register(name, metric(name));
+        return registry;
+    }
+
+    /**
+     * Creates a metric of the type Cassandra uses for {@code name}, with some recorded values.
+     */
+    static Metric metric(String name) {
+        int seed = name.hashCode() & 0xffff;
+        if (name.contains("Latency")) {
+            Timer timer = new Timer();
+            for (int i = 0; i < 16; i++)
+                timer.update(seed + i * 100L, TimeUnit.MICROSECONDS);
+            return timer;
+        }
+        if (name.contains("Histogram")) {
+            Histogram histogram = new Histogram(new ExponentiallyDecayingReservoir());
+            for (int i = 0; i < 16; i++)
+                histogram.update(seed + i);
+            return histogram;
+        }
+        if (name.contains("Dropped.")) {
+            Meter meter = new Meter();
+            meter.mark(seed);
+            return meter;
+        }
+        for (String counter : COUNTERS) {
+            if (name.contains('.' + counter + '.') || name.endsWith('.' + counter)) {
+                Counter c = new Counter();
+                c.inc(seed);
+                return c;
+            }
+        }
+        long value = seed * 1024L;
+        return (Gauge<Long>) () -> value;
+    }
+
+    /**
+     * Discards the encoded response, but keeps its size.
+     */
+    static final class DiscardingOutputStream extends OutputStream {
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import io.prometheus.client.Prometheus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Bounded executor that runs metric collections, so that Netty's event loops only parse requests
+ * and write bytes. Scrapes that do not fit into the queue are rejected.
+ */
+final class CollectionExecutor extends ThreadPoolExecutor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CollectionExecutor.class);
+
+    private static final String THREAD_NAME_PREFIX = "prometheus-metrics-collector-";
+
+    final Counter rejected = new Counter();
+
+    CollectionExecutor(int threads, int queueSize, boolean virtualThreads) {
+        super(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize),
+                threadFactory(virtualThreads));
+        allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        try {
+            super.execute(command);
+        } catch (RejectedExecutionException e) {
+            rejected.inc();
+            throw e;
+        }
+    }
+
+    void registerMetrics(Consumer<MetricsContainer> registration) {
+        registration.accept(new MetricsContainer("PrometheusExporter_CollectionExecutor", "metrics collection executor", Prometheus.MetricType.GAUGE)
+                .addMetric("PrometheusExporter_CollectionExecutor_Queued", (Gauge<Integer>) () -> getQueue().size(), "type", "queued")
+                .addMetric("PrometheusExporter_CollectionExecutor_Active", (Gauge<Integer>) this::getActiveCount, "type", "active"));
+        registration.accept(new MetricsContainer("PrometheusExporter_CollectionExecutor_Rejected", "rejected scrapes", Prometheus.MetricType.COUNTER)
+                .addMetric("PrometheusExporter_CollectionExecutor_Rejected", rejected));
+    }
+
+    private static ThreadFactory threadFactory(boolean virtualThreads) {
+        if (virtualThreads) {
+            ThreadFactory factory = virtualThreadFactory();
+            if (factory != null)
+                return factory;
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, THREAD_NAME_PREFIX + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Returns a factory for virtual threads via {@code Thread.ofVirtual().name(...).factory()},
+     * if the running JVM supports them.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, THREAD_NAME_PREFIX, 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.warn("Virtual threads are not available in this JVM, using platform threads for metrics collection");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registered metrics containers by name.
+ * <p>
+ * Updates are applied to a concurrent map in O(1) and then published to the containers visible to
+ * scrapes. Scrapes iterate over an immutable snapshot of the published containers, which is built
+ * lazily by the first scrape after a change and shared by all following scrapes, so scrapes always
+ * see a consistent set of containers.
+ * </p>
+ * <p>
+ * Changes made by a thread within {@link #beginBatch()} and {@link #endBatch()} are published at once,
+ * when its outermost batch ends. Batches are tracked per thread, changes of other threads are
+ * published as usual while a batch is open.
+ * </p>
+ */
+final class ContainerStore {
+    private final ConcurrentMap<String, MetricsContainer> containers = new ConcurrentHashMap<>();
+    private final ThreadLocal<Batch> batch = new ThreadLocal<>();
+
+    // guarded by this
+    private final Map<String, MetricsContainer> published = new HashMap<>();
+    private volatile long version;
+    private volatile Snapshot snapshot = new Snapshot(0L, Collections.emptyList());
+
+    MetricsContainer get(String name) {
+        return containers.get(name);
+    }
+
+    void add(MetricsContainer container) {
+        containers.put(container.name, container);
+        changed(container.name);
+    }
+
+    void remove(String name) {
+        if (containers.remove(name) != null)
+            changed(name);
+    }
+
+    void beginBatch() {
+        Batch b = batch.get();
+        if (b == null)
+            batch.set(b = new Batch());
+        b.depth++;
+    }
+
+    void endBatch() {
+        Batch b = batch.get();
+        if (--b.depth == 0) {
+            batch.remove();
+            if (!b.names.isEmpty())
+                publish(b.names);
+        }
+    }
+
+    /**
+     * The containers as of the last published change.
+     */
+    List<MetricsContainer> snapshot() {
+        Snapshot s = snapshot;
+        if (s.version == version)
+            return s.containers;
+
+        synchronized (this) {
+            s = snapshot;
+            if (s.version != version) {
+                s = new Snapshot(version, new ArrayList<>(published.values()));
+                snapshot = s;
+            }
+            return s.containers;
+        }
+    }
+
+    private void changed(String name) {
+        Batch b = batch.get();
+        if (b != null)
+            b.names.add(name);
+        else
+            publish(Collections.singleton(name));
+    }
+
+    /**
+     * Publishes the current state of the given containers, a container added and removed again in
+     * a batch is not published at all.
+     */
+    private synchronized void publish(Collection<String> names) {
+        for (String name : names) {
+            MetricsContainer container = containers.get(name);
+            if (container != null)
+                published.put(name, container);
+            else
+                published.remove(name);
+        }
+        version++;
+    }
+
+    private static final class Batch {
+        int depth;
+        final Set<String> names = new LinkedHashSet<>();
+    }
+
+    private static final class Snapshot {
+        final long version;
+        final List<MetricsContainer> containers;
+
+        Snapshot(long version, List<MetricsContainer> containers) {
+            this.version = version;
+            this.containers = Collections.unmodifiableList(containers);
+        }
+    }
+}
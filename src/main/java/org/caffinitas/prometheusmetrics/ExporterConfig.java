@@ -26,6 +26,31 @@ public final class ExporterConfig {
     public String bindAddress = "127.0.0.1";
     public int httpPort = 8088;
     public boolean includeJvm;
+    public boolean aggregateJvmThreads;
+    public int jvmThreadsTopN;
+    public int scrapeCacheMillis;
+    public int scrapeTimeoutOffsetMillis = 500;
+    public int chunkSize = 65536;
+    public boolean directBuffers = true;
+    public int maxPendingChunks = 4;
+    public int collectionThreads = 2;
+    public int collectionQueueSize = 64;
+    public boolean collectionVirtualThreads;
+    public boolean asyncRegistration;
+    public String transport = "auto";
+    public int workerThreads = 2;
+    public String allocator = "pooled";
+    public int tcpBacklog = 1024;
+    public boolean tcpNoDelay = true;
+    public boolean tcpKeepAlive;
+    public int tcpSendBufferSize;
+    public int familyTimingSampleInterval = 16;
+    public int slowestFamilies = 10;
+    public int quarantineBudgetMillis = 0;
+    public int quarantineThreshold = 3;
+    public int quarantineBackoffMillis = 30000;
+    public int quarantineMaxBackoffMillis = 600000;
+    public boolean quarantineServeLastGood = true;
 
     public List<Mapping> mappings = new ArrayList<>();
     public List<Exclusion> exclusions = new ArrayList<>();
@@ -35,6 +60,9 @@ public final class ExporterConfig {
         public String pattern;
         public String name;
         public List<Label> labels = new ArrayList<>();
+        long refreshIntervalMillis;
+        public String refreshInterval;
+        public boolean exportTimestamp;
     }
 
     public final static class Exclusion {
@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.prometheus.client.Prometheus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * The exporter's own metrics.
+ * <ul>
+ *     <li>{@code PrometheusExporter_ScrapeMillis_bucket}, {@code _sum} and {@code _count} - cumulative
+ *     histograms of the scrape durations per response format and content encoding, from receiving the
+ *     request until the response has been written</li>
+ *     <li>{@code PrometheusExporter_ResponseBytes} - bytes written to scraping clients, after compression</li>
+ *     <li>{@code PrometheusExporter_Families} and {@code PrometheusExporter_Series} - exported metric
+ *     families and series</li>
+ *     <li>{@code PrometheusExporter_Registrations}, {@code PrometheusExporter_RegistrationMicros} and
+ *     {@code PrometheusExporter_MappingMicros} - codahale metrics added to or removed from the registry
+ *     and the time spent to map and register them</li>
+ *     <li>{@code PrometheusExporter_SlowestFamilies} - collection time in seconds of the slowest metric
+ *     families, measured in one of {@code familyTimingSampleInterval} scrapes</li>
+ * </ul>
+ * All values are recorded into {@link LongAdder}s, which do not contend for a single cache line.
+ */
+final class ExporterMetrics {
+    private static final long[] BOUNDS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+    private static final String[] FORMATS = {"text", "protobuf"};
+    private static final String[] ENCODINGS = {"identity", "gzip", "deflate"};
+
+    private final int sampleInterval;
+    private final int slowestFamilies;
+    private final Supplier<List<MetricsContainer>> containers;
+
+    private final MillisHistogram.Families scrapeMillis = new MillisHistogram.Families("PrometheusExporter_ScrapeMillis",
+            "scrape durations", "total duration of scrapes", "number of scrapes");
+    private final MetricsContainer responseBytes = counterContainer("PrometheusExporter_ResponseBytes", "bytes sent to scraping clients");
+
+    private final MillisHistogram[] histograms = new MillisHistogram[FORMATS.length * ENCODINGS.length];
+    private final LongAdder[] bytes = new LongAdder[FORMATS.length * ENCODINGS.length];
+
+    private final LongAdder added = new LongAdder();
+    private final LongAdder removed = new LongAdder();
+    private final LongAdder addedNanos = new LongAdder();
+    private final LongAdder removedNanos = new LongAdder();
+    private final LongAdder mappingNanos = new LongAdder();
+
+    ExporterMetrics(ExporterConfig config, Supplier<List<MetricsContainer>> containers) {
+        this.sampleInterval = Math.max(0, config.familyTimingSampleInterval);
+        this.slowestFamilies = Math.max(0, config.slowestFamilies);
+        this.containers = containers;
+
+        for (int f = 0; f < FORMATS.length; f++) {
+            for (int e = 0; e < ENCODINGS.length; e++) {
+                String format = FORMATS[f];
+                String encoding = ENCODINGS[e];
+                String name = format + '/' + encoding;
+                LongAdder sent = new LongAdder();
+                responseBytes.addMetric(name, (CountingMetric) sent::sum, "format", format, "encoding", encoding);
+                histograms[f * ENCODINGS.length + e] = new MillisHistogram(BOUNDS)
+                        .addSeries(scrapeMillis, name, "format", format, "encoding", encoding);
+                bytes[f * ENCODINGS.length + e] = sent;
+            }
+        }
+    }
+
+    void registerMetrics(Consumer<MetricsContainer> registration) {
+        scrapeMillis.registerMetrics(registration);
+        registration.accept(responseBytes);
+        registration.accept(new MetricsContainer("PrometheusExporter_Families", "exported metric families", Prometheus.MetricType.GAUGE)
+                .addMetric("PrometheusExporter_Families", (LongValueGauge) () -> containers.get().size()));
+        registration.accept(new MetricsContainer("PrometheusExporter_Series", "exported series", Prometheus.MetricType.GAUGE)
+                .addMetric("PrometheusExporter_Series", (LongValueGauge) () -> {
+                    long series = 0L;
+                    for (MetricsContainer container : containers.get())
+                        series += container.size();
+                    return series;
+                }));
+        registration.accept(new MetricsContainer("PrometheusExporter_Registrations", "codahale metrics added to or removed from the registry", Prometheus.MetricType.COUNTER)
+                .addMetric("PrometheusExporter_Registrations_Added", (CountingMetric) added::sum, "type", "added")
+                .addMetric("PrometheusExporter_Registrations_Removed", (CountingMetric) removed::sum, "type", "removed"));
+        registration.accept(new MetricsContainer("PrometheusExporter_RegistrationMicros", "time spent to add or remove codahale metrics", Prometheus.MetricType.COUNTER)
+                .addMetric("PrometheusExporter_RegistrationMicros_Added", (CountingMetric) () -> TimeUnit.NANOSECONDS.toMicros(addedNanos.sum()), "type", "added")
+                .addMetric("PrometheusExporter_RegistrationMicros_Removed", (CountingMetric) () -> TimeUnit.NANOSECONDS.toMicros(removedNanos.sum()), "type", "removed"));
+        registration.accept(new MetricsContainer("PrometheusExporter_MappingMicros", "time spent to map codahale metric names", Prometheus.MetricType.COUNTER)
+                .addMetric("PrometheusExporter_MappingMicros", (CountingMetric) () -> TimeUnit.NANOSECONDS.toMicros(mappingNanos.sum())));
+        if (sampleInterval > 0 && slowestFamilies > 0)
+            registration.accept(new SlowestFamilies());
+    }
+
+    /**
+     * Starts measuring a scrape.
+     *
+     * @param wrapper compression applied to the response, {@code null} if none
+     */
+    Scrape startScrape(ResponseFormat responseFormat, ZlibWrapper wrapper) {
+        int encoding = wrapper == ZlibWrapper.GZIP ? 1 : wrapper == ZlibWrapper.ZLIB ? 2 : 0;
+        int format = responseFormat == ResponseFormat.PROTOBUF ? 1 : 0;
+        boolean sampled = sampleInterval > 0 && ThreadLocalRandom.current().nextInt(sampleInterval) == 0;
+        int i = format * ENCODINGS.length + encoding;
+        return new Scrape(histograms[i], bytes[i], sampled);
+    }
+
+    void registered(long nanos) {
+        added.increment();
+        addedNanos.add(nanos);
+    }
+
+    void unregistered(long nanos) {
+        removed.increment();
+        removedNanos.add(nanos);
+    }
+
+    void mapped(long nanos) {
+        mappingNanos.add(nanos);
+    }
+
+    private static MetricsContainer counterContainer(String name, String help) {
+        return new MetricsContainer(name, help, Prometheus.MetricType.COUNTER);
+    }
+
+    /**
+     * A scrape in progress.
+     */
+    static final class Scrape {
+        private final MillisHistogram histogram;
+        private final LongAdder bytes;
+        private final long start = System.nanoTime();
+
+        /**
+         * Whether the collection time of each metric family is measured.
+         */
+        final boolean sampled;
+
+        private Scrape(MillisHistogram histogram, LongAdder bytes, boolean sampled) {
+            this.histogram = histogram;
+            this.bytes = bytes;
+            this.sampled = sampled;
+        }
+
+        void complete(long responseBytes) {
+            histogram.recordNanos(System.nanoTime() - start);
+            bytes.add(responseBytes);
+        }
+    }
+
+    /**
+     * The {@code slowestFamilies} metric families with the longest collection time in the last sampled scrape.
+     */
+    private final class SlowestFamilies extends MetricsContainer {
+        private final MetricsContainer[] top = new MetricsContainer[slowestFamilies];
+        private int size;
+
+        SlowestFamilies() {
+            super("PrometheusExporter_SlowestFamilies", "collection time in seconds of the slowest metric families", Prometheus.MetricType.GAUGE);
+        }
+
+        @Override
+        synchronized List<MetricInfo> getMetrics() {
+            int k = 0;
+            for (MetricsContainer container : containers.get()) {
+                long nanos = container.sampledCollectNanos;
+                if (nanos <= 0L || (k == top.length && nanos <= top[k - 1].sampledCollectNanos))
+                    continue;
+                int j = k < top.length ? k++ : k - 1;
+                for (; j > 0 && top[j - 1].sampledCollectNanos < nanos; j--)
+                    top[j] = top[j - 1];
+                top[j] = container;
+            }
+
+            List<MetricInfo> result = new ArrayList<>(k);
+            for (int i = 0; i < k; i++) {
+                double seconds = top[i].sampledCollectNanos / 1e9d;
+                result.add(new MetricInfo<>(top[i].name, (DoubleValueGauge) () -> seconds, "family", top[i].name));
+            }
+            Arrays.fill(top, null);
+            size = k;
+            return Collections.unmodifiableList(result);
+        }
+
+        @Override
+        synchronized int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Counts the bytes written to a channel, placed between the HTTP encoder and the SSL handler.
+     * Only used by the channel's event loop.
+     */
+    static final class ByteCounter extends ChannelOutboundHandlerAdapter {
+        private long bytes;
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof ByteBuf)
+                bytes += ((ByteBuf) msg).readableBytes();
+            else if (msg instanceof ByteBufHolder)
+                bytes += ((ByteBufHolder) msg).content().readableBytes();
+            super.write(ctx, msg, promise);
+        }
+
+        /**
+         * Returns the bytes written since the previous call.
+         */
+        long take() {
+            long b = bytes;
+            bytes = 0L;
+            return b;
+        }
+    }
+}
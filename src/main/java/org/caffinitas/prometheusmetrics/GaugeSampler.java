@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.codahale.metrics.Gauge;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Samples gauges of mappings with a {@code refreshInterval} in the background.
+ */
+final class GaugeSampler {
+    private static final Pattern INTERVAL_PATTERN = Pattern.compile("(\\d+)\\s*(ms|s|m|h|d)?");
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "prometheus-metrics-sampler");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ConcurrentMap<String, SampledGauge<?>> gauges = new ConcurrentHashMap<>();
+
+    <T> SampledGauge<T> add(String sourceName, Gauge<T> gauge, long intervalMillis, boolean exportTimestamp) {
+        SampledGauge<T> sampled = new SampledGauge<>(sourceName, gauge, exportTimestamp);
+        remove(sourceName);
+        gauges.put(sourceName, sampled);
+        // spread the first samples across the interval, so that gauges registered together are not
+        // all sampled at once
+        long initialDelay = ThreadLocalRandom.current().nextLong(intervalMillis);
+        sampled.future = executor.scheduleWithFixedDelay(sampled::sample, initialDelay, intervalMillis, TimeUnit.MILLISECONDS);
+        return sampled;
+    }
+
+    void remove(String sourceName) {
+        SampledGauge<?> sampled = gauges.remove(sourceName);
+        if (sampled != null)
+            sampled.future.cancel(false);
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        gauges.clear();
+    }
+
+    /**
+     * Parses intervals like {@code 500ms}, {@code 30s}, {@code 5m}, {@code 1h} or {@code 1d} into
+     * milliseconds. Plain numbers are seconds.
+     */
+    static long parseInterval(String interval) {
+        Matcher matcher = INTERVAL_PATTERN.matcher(interval.trim());
+        if (!matcher.matches())
+            throw new IllegalArgumentException("Invalid refresh interval '" + interval + "'");
+        long value = Long.parseLong(matcher.group(1));
+        String unit = matcher.group(2);
+        switch (unit != null ? unit : "s") {
+            case "ms":
+                return value;
+            case "m":
+                return TimeUnit.MINUTES.toMillis(value);
+            case "h":
+                return TimeUnit.HOURS.toMillis(value);
+            case "d":
+                return TimeUnit.DAYS.toMillis(value);
+            default:
+                return TimeUnit.SECONDS.toMillis(value);
+        }
+    }
+}
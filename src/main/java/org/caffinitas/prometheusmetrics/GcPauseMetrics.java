@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import io.prometheus.client.Prometheus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Records every garbage collection, as reported by {@link GarbageCollectionNotificationInfo} notifications,
+ * instead of polling the collectors at scrape time.
+ * <p>
+ * Pause durations are recorded per collector and cause into cumulative histograms with millisecond
+ * buckets - the {@code JVM_GC_PauseMillis_bucket} (with the {@code le} label), {@code _sum} and
+ * {@code _count} counter families. Only stop-the-world collections are recorded, not the cycles of
+ * concurrent collectors, which mostly run alongside the application. The bytes by which each memory
+ * pool shrank ({@code reclaimed}) or an old generation pool grew ({@code promoted}) during collections
+ * are counted in {@code JVM_GC_MemoryPoolBytes}.
+ * </p>
+ */
+final class GcPauseMetrics implements NotificationListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GcPauseMetrics.class);
+
+    private static final long[] BOUNDS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    private final MillisHistogram.Families pauseMillis = new MillisHistogram.Families("JVM_GC_PauseMillis",
+            "garbage collection pauses", "total duration of garbage collection pauses", "number of garbage collection pauses");
+    private final MetricsContainer poolBytes = counterContainer("JVM_GC_MemoryPoolBytes", "bytes reclaimed from or promoted into memory pools by garbage collections");
+
+    private final ConcurrentMap<String, MillisHistogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> bytes = new ConcurrentHashMap<>();
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+
+    GcPauseMetrics() {
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (bean instanceof NotificationEmitter) {
+                ((NotificationEmitter) bean).addNotificationListener(this,
+                        n -> GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(n.getType()), null);
+                emitters.add((NotificationEmitter) bean);
+            }
+        }
+    }
+
+    void registerMetrics(Consumer<MetricsContainer> registration) {
+        pauseMillis.registerMetrics(registration);
+        registration.accept(poolBytes);
+    }
+
+    void close() {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(this);
+            } catch (ListenerNotFoundException ignored) {
+            }
+        }
+        emitters.clear();
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        try {
+            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            GcInfo gcInfo = info.getGcInfo();
+            if (isPause(info.getGcName(), info.getGcAction()))
+                record(info.getGcName(), info.getGcCause(), gcInfo.getDuration());
+
+            Map<String, MemoryUsage> before = gcInfo.getMemoryUsageBeforeGc();
+            for (Map.Entry<String, MemoryUsage> after : gcInfo.getMemoryUsageAfterGc().entrySet()) {
+                MemoryUsage usage = before.get(after.getKey());
+                if (usage == null)
+                    continue;
+                long delta = after.getValue().getUsed() - usage.getUsed();
+                if (delta < 0L)
+                    poolCounter(after.getKey(), "reclaimed").addAndGet(-delta);
+                else if (delta > 0L && isOldGeneration(after.getKey()))
+                    poolCounter(after.getKey(), "promoted").addAndGet(delta);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.debug("Failed to record garbage collection notification", e);
+        }
+    }
+
+    /**
+     * Whether a collection of {@code gcName} stops the world for its whole duration. CMS, the
+     * {@code G1 Concurrent GC} collector and the {@code Cycles} collectors of ZGC and Shenandoah report
+     * concurrent cycles instead, the pauses of ZGC and Shenandoah are reported by their {@code Pauses}
+     * collectors.
+     */
+    static boolean isPause(String gcName, String gcAction) {
+        return !gcName.equals("ConcurrentMarkSweep")
+                && !gcName.equals("G1 Concurrent GC")
+                && !gcName.endsWith("Cycles")
+                && !gcAction.contains("cycle");
+    }
+
+    /**
+     * Whether {@code pool} is the old generation, like {@code G1 Old Gen} or {@code Tenured Gen}, into
+     * which live objects are promoted.
+     */
+    static boolean isOldGeneration(String pool) {
+        return pool.contains("Old Gen") || pool.contains("Tenured");
+    }
+
+    void record(String gcName, String gcCause, long durationMillis) {
+        MillisHistogram histogram = histograms.get(gcName + '\0' + gcCause);
+        if (histogram == null)
+            histogram = histograms.computeIfAbsent(gcName + '\0' + gcCause, k -> new MillisHistogram(BOUNDS)
+                    .addSeries(pauseMillis, gcName + '/' + gcCause, "gc", gcName, "cause", gcCause));
+        histogram.recordMillis(durationMillis);
+    }
+
+    private AtomicLong poolCounter(String pool, String type) {
+        AtomicLong counter = bytes.get(pool + '\0' + type);
+        if (counter == null) {
+            counter = bytes.computeIfAbsent(pool + '\0' + type, k -> {
+                AtomicLong c = new AtomicLong();
+                poolBytes.addMetric(pool + '/' + type, (CountingMetric) c::get, "pool", pool, "type", type);
+                return c;
+            });
+        }
+        return counter;
+    }
+
+    private static MetricsContainer counterContainer(String name, String help) {
+        return new MetricsContainer(name, help, Prometheus.MetricType.COUNTER);
+    }
+}
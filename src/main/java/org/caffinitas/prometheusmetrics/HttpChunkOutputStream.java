@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.io.OutputStream;
+import java.util.function.Consumer;
+
+/**
+ * Writes the response body into fixed-size {@link ByteBuf}s from the channel's (pooled) allocator.
+ * Each full chunk is handed over to {@code sink} without copying; the receiver of a chunk is
+ * responsible for releasing it.
+ */
+final class HttpChunkOutputStream extends OutputStream {
+    private final ByteBufAllocator alloc;
+    private final int chunkSize;
+    private final boolean direct;
+    private final Consumer<ByteBuf> sink;
+
+    private ByteBuf chunk;
+
+    HttpChunkOutputStream(ByteBufAllocator alloc, int chunkSize, boolean direct, Consumer<ByteBuf> sink) {
+        this.alloc = alloc;
+        this.chunkSize = chunkSize;
+        this.direct = direct;
+        this.sink = sink;
+    }
+
+    @Override
+    public void write(int b) {
+        chunk().writeByte(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            ByteBuf buf = chunk();
+            int n = Math.min(len, buf.writableBytes());
+            buf.writeBytes(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Hands the current, partially filled chunk over to the sink.
+     */
+    @Override
+    public void flush() {
+        ByteBuf buf = chunk;
+        if (buf != null) {
+            chunk = null;
+            if (buf.isReadable())
+                sink.accept(buf);
+            else
+                buf.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    /**
+     * Releases the current chunk without writing it, used when the response cannot be completed.
+     */
+    void discard() {
+        ByteBuf buf = chunk;
+        if (buf != null) {
+            chunk = null;
+            buf.release();
+        }
+    }
+
+    private ByteBuf chunk() {
+        ByteBuf buf = chunk;
+        if (buf != null && buf.isWritable())
+            return buf;
+        if (buf != null)
+            sink.accept(buf);
+        return chunk = direct ? alloc.directBuffer(chunkSize, chunkSize) : alloc.heapBuffer(chunkSize, chunkSize);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Interned, immutable set of label pairs of a series.
+ * <p>
+ * Equal label sets are shared by all series that use them, for example {@code keyspace=ks,table=tbl}
+ * by all {@code Table_*} families. Each label set also holds its labels pre-encoded for the text and
+ * protobuf formats. Label names and values are shared between label sets as well, for example
+ * {@code keyspace=ks} by all tables of {@code ks}. Both tables only hold weak references, so label
+ * sets, names and values that are no longer referenced by any series are garbage collected.
+ * </p>
+ */
+final class LabelSet {
+    private static final Map<LabelSet, WeakReference<LabelSet>> INTERNED = new WeakHashMap<>();
+    /**
+     * Label names and values of the label sets in {@link #INTERNED}, guarded by {@link #INTERNED}.
+     */
+    private static final Map<String, WeakReference<String>> SYMBOLS = new WeakHashMap<>();
+
+    static final LabelSet EMPTY = of(new String[0][]);
+
+    /**
+     * Label names and values, alternating.
+     */
+    private final String[] symbols;
+    private final int hash;
+
+    /**
+     * UTF-8 encoded {@code name=value,} pairs of the text format without the enclosing braces.
+     */
+    final byte[] text;
+
+    /**
+     * Serialized {@code label} fields of the series' {@code Metric} message in the protobuf format.
+     */
+    final byte[] protobuf;
+
+    private LabelSet(String[] symbols, byte[] text, byte[] protobuf) {
+        this.symbols = symbols;
+        this.hash = Arrays.hashCode(symbols);
+        this.text = text;
+        this.protobuf = protobuf;
+    }
+
+    static LabelSet of(String[][] labels) {
+        String[] symbols = new String[labels.length * 2];
+        for (int i = 0; i < labels.length; i++) {
+            symbols[i * 2] = labels[i][0];
+            symbols[i * 2 + 1] = labels[i][1];
+        }
+
+        LabelSet probe = new LabelSet(symbols, null, null);
+        synchronized (INTERNED) {
+            WeakReference<LabelSet> ref = INTERNED.get(probe);
+            LabelSet labelSet = ref != null ? ref.get() : null;
+            if (labelSet == null) {
+                for (int i = 0; i < symbols.length; i++)
+                    symbols[i] = symbol(symbols[i]);
+                labelSet = new LabelSet(symbols,
+                        ResponseFormat.TextFormat.textLabels(labels).getBytes(StandardCharsets.UTF_8),
+                        ProtobufOutput.labels(labels));
+                INTERNED.put(labelSet, new WeakReference<>(labelSet));
+            }
+            return labelSet;
+        }
+    }
+
+    private static String symbol(String s) {
+        WeakReference<String> ref = SYMBOLS.get(s);
+        String symbol = ref != null ? ref.get() : null;
+        if (symbol == null) {
+            symbol = s;
+            SYMBOLS.put(symbol, new WeakReference<>(symbol));
+        }
+        return symbol;
+    }
+
+    static LabelSet of(String... labels) {
+        String[][] pairs = new String[labels.length / 2][];
+        for (int i = 0; i < labels.length / 2; i++) {
+            pairs[i] = new String[]{labels[i * 2], labels[i * 2 + 1]};
+        }
+        return of(pairs);
+    }
+
+    int size() {
+        return symbols.length / 2;
+    }
+
+    String name(int i) {
+        return symbols[i * 2];
+    }
+
+    String value(int i) {
+        return symbols[i * 2 + 1];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof LabelSet && Arrays.equals(symbols, ((LabelSet) o).symbols);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
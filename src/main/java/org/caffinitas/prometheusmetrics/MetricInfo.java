@@ -23,22 +23,61 @@ class MetricInfo<M extends Metric> {
 
     final String sourceName;
     final M metric;
-    final String[][] labels;
+    final LabelSet labels;
+    final ValueReader reader;
 
     MetricInfo(String sourceName, M metric, String... labels) {
-        this.sourceName = sourceName;
-        this.metric = metric;
-
-        String[][] pairs = new String[labels.length / 2][];
-        for (int i = 0; i < labels.length / 2; i++) {
-            pairs[i] = new String[]{labels[i * 2], labels[i * 2 + 1]};
-        }
-        this.labels = pairs;
+        this(sourceName, metric, LabelSet.of(labels));
     }
 
     MetricInfo(String sourceName, M metric, String[][] labels) {
+        this(sourceName, metric, LabelSet.of(labels));
+    }
+
+    MetricInfo(String sourceName, M metric, LabelSet labels) {
         this.sourceName = sourceName;
         this.metric = metric;
         this.labels = labels;
+        this.reader = ValueReader.of(metric);
+    }
+
+    /**
+     * How the encoders read the value of a gauge or counter, resolved once when the series is created,
+     * so that a scrape does not have to dispatch on the type of the metric or of its value.
+     */
+    enum ValueReader {
+        /** {@link Readout#longValue(int)} */
+        READOUT_LONG,
+        /** {@link Readout#doubleValue(int)} */
+        READOUT_DOUBLE,
+        /** {@link LongValueGauge#getLong()} */
+        LONG_GAUGE,
+        /** {@link DoubleValueGauge#getDouble()} */
+        DOUBLE_GAUGE,
+        /** the last sample of a {@link SampledGauge} */
+        SAMPLED_GAUGE,
+        /** the boxed value of any other {@link Gauge} */
+        GAUGE,
+        /** {@link Counting#getCount()} */
+        COUNT,
+        NONE;
+
+        static ValueReader of(Metric metric) {
+            if (metric instanceof Readout.LongValue)
+                return READOUT_LONG;
+            if (metric instanceof Readout.DoubleValue)
+                return READOUT_DOUBLE;
+            if (metric instanceof LongValueGauge)
+                return LONG_GAUGE;
+            if (metric instanceof DoubleValueGauge)
+                return DOUBLE_GAUGE;
+            if (metric instanceof SampledGauge)
+                return SAMPLED_GAUGE;
+            if (metric instanceof Gauge)
+                return GAUGE;
+            if (metric instanceof Counting)
+                return COUNT;
+            return NONE;
+        }
     }
 }
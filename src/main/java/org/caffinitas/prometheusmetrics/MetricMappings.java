@@ -0,0 +1,351 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled exclusions and mappings of an {@link ExporterConfig}.
+ * <p>
+ * Exclusions and mappings are indexed by the literal prefix of their regular expression in a trie
+ * over the dot separated segments of metric names, so that a name is only matched against the
+ * regular expressions that can match it. Mappings are still evaluated in configuration order,
+ * the first matching mapping wins. The name and label templates are parsed once into literals
+ * and group references.
+ * </p>
+ */
+final class MetricMappings {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricMappings.class);
+
+    private final Compiled[] exclusions;
+    private final PrefixIndex exclusionIndex = new PrefixIndex();
+    private final Compiled[] mappings;
+    private final PrefixIndex mappingIndex = new PrefixIndex();
+
+    MetricMappings(List<ExporterConfig.Exclusion> exclusions, List<ExporterConfig.Mapping> mappings) {
+        this.exclusions = new Compiled[exclusions.size()];
+        for (int i = 0; i < this.exclusions.length; i++) {
+            ExporterConfig.Exclusion exclusion = exclusions.get(i);
+            exclusion.regex = Pattern.compile(exclusion.pattern);
+            LOGGER.info("Initializing Prometheus metrics exclusion with regex '{}'", exclusion.regex);
+            this.exclusions[i] = new Compiled(exclusion.regex, null);
+            exclusionIndex.add(this.exclusions[i].prefix, i);
+        }
+        exclusionIndex.build();
+
+        this.mappings = new Compiled[mappings.size()];
+        for (int i = 0; i < this.mappings.length; i++) {
+            ExporterConfig.Mapping mapping = mappings.get(i);
+            mapping.regex = Pattern.compile(mapping.pattern);
+            LOGGER.info("Initializing Prometheus metrics mapping with regex '{}'", mapping.regex);
+            this.mappings[i] = new Compiled(mapping.regex, mapping);
+            mappingIndex.add(this.mappings[i].prefix, i);
+        }
+        mappingIndex.build();
+    }
+
+    /**
+     * Whether {@code codahaleName} matches any exclusion.
+     */
+    boolean isExcluded(String codahaleName) {
+        for (int i : exclusionIndex.candidates(codahaleName)) {
+            if (exclusions[i].matcher(codahaleName) != null)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the first mapping that matches {@code codahaleName} or {@code null}.
+     */
+    Match match(String codahaleName) {
+        for (int i : mappingIndex.candidates(codahaleName)) {
+            Compiled compiled = mappings[i];
+            Matcher matcher = compiled.matcher(codahaleName);
+            if (matcher != null)
+                return new Match(compiled, matcher);
+        }
+        return null;
+    }
+
+    static final class Match {
+        private final Compiled compiled;
+        private final Matcher matcher;
+
+        private Match(Compiled compiled, Matcher matcher) {
+            this.compiled = compiled;
+            this.matcher = matcher;
+        }
+
+        ExporterConfig.Mapping mapping() {
+            return compiled.mapping;
+        }
+
+        String name() {
+            return compiled.name.expand(matcher);
+        }
+
+        String[][] labels() {
+            String[][] labels = new String[compiled.labelNames.length][];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = new String[]{
+                        compiled.labelNames[i].expand(matcher),
+                        compiled.labelValues[i].expand(matcher)
+                };
+            }
+            return labels;
+        }
+    }
+
+    private static final class Compiled {
+        final Pattern regex;
+        final String prefix;
+        final ExporterConfig.Mapping mapping;
+        final Template name;
+        final Template[] labelNames;
+        final Template[] labelValues;
+
+        Compiled(Pattern regex, ExporterConfig.Mapping mapping) {
+            this.regex = regex;
+            this.prefix = literalPrefix(regex.pattern());
+            this.mapping = mapping;
+            if (mapping != null) {
+                int groupCount = regex.matcher("").groupCount();
+                this.name = Template.compile(mapping.name, groupCount);
+                this.labelNames = new Template[mapping.labels.size()];
+                this.labelValues = new Template[mapping.labels.size()];
+                for (int i = 0; i < labelNames.length; i++) {
+                    ExporterConfig.Label label = mapping.labels.get(i);
+                    labelNames[i] = Template.compile(label.label, groupCount);
+                    labelValues[i] = Template.compile(label.value, groupCount);
+                }
+            } else {
+                this.name = null;
+                this.labelNames = null;
+                this.labelValues = null;
+            }
+        }
+
+        Matcher matcher(String codahaleName) {
+            if (!codahaleName.startsWith(prefix))
+                return null;
+            Matcher matcher = regex.matcher(codahaleName);
+            return matcher.matches() ? matcher : null;
+        }
+    }
+
+    /**
+     * Returns the literal text that every match of {@code regex} starts with.
+     */
+    static String literalPrefix(String regex) {
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\')
+                i++;
+            else if (c == '|')
+                return "";
+        }
+
+        StringBuilder prefix = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 == regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1)))
+                    break;
+                c = regex.charAt(i + 1);
+                i += 2;
+            } else if ("[](){}.*+?^$".indexOf(c) >= 0) {
+                break;
+            } else {
+                i++;
+            }
+
+            if (i < regex.length()) {
+                char quantifier = regex.charAt(i);
+                if (quantifier == '?' || quantifier == '*' || quantifier == '{')
+                    break;
+                prefix.append(c);
+                if (quantifier == '+')
+                    break;
+            } else {
+                prefix.append(c);
+            }
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * Trie over the dot terminated segments of literal prefixes.
+     */
+    private static final class PrefixIndex {
+        private static final int[] NONE = new int[0];
+
+        private final Node root = new Node();
+
+        void add(String prefix, int index) {
+            Node node = root;
+            for (int start = 0, end; (end = prefix.indexOf('.', start)) != -1; start = end + 1)
+                node = node.children.computeIfAbsent(prefix.substring(start, end), s -> new Node());
+            node.own.add(index);
+        }
+
+        /**
+         * Pre-computes the candidates of each node, which are the indexes added to the node and its
+         * ancestors in ascending order.
+         */
+        void build() {
+            build(root, NONE);
+        }
+
+        private static void build(Node node, int[] inherited) {
+            int[] candidates = Arrays.copyOf(inherited, inherited.length + node.own.size());
+            for (int i = 0; i < node.own.size(); i++)
+                candidates[inherited.length + i] = node.own.get(i);
+            Arrays.sort(candidates);
+            node.candidates = candidates;
+            for (Node child : node.children.values())
+                build(child, candidates);
+        }
+
+        int[] candidates(String name) {
+            Node node = root;
+            for (int start = 0, end; (end = name.indexOf('.', start)) != -1; start = end + 1) {
+                Node child = node.children.get(name.substring(start, end));
+                if (child == null)
+                    break;
+                node = child;
+            }
+            return node.candidates;
+        }
+
+        private static final class Node {
+            final Map<String, Node> children = new HashMap<>();
+            final List<Integer> own = new ArrayList<>();
+            int[] candidates;
+        }
+    }
+
+    /**
+     * Replacement string parsed like {@link Matcher#appendReplacement(StringBuffer, String)} does,
+     * into literals and references to numbered or named groups.
+     */
+    static final class Template {
+        private static final int LITERAL = -1;
+        private static final int NAMED_GROUP = -2;
+
+        private final String[] parts;
+        private final int[] groups;
+
+        private Template(String[] parts, int[] groups) {
+            this.parts = parts;
+            this.groups = groups;
+        }
+
+        static Template compile(String replacement, int groupCount) {
+            List<String> parts = new ArrayList<>();
+            List<Integer> groups = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+            int cursor = 0;
+            while (cursor < replacement.length()) {
+                char c = replacement.charAt(cursor++);
+                if (c == '\\') {
+                    if (cursor == replacement.length())
+                        throw new IllegalArgumentException("character to be escaped is missing in '" + replacement + "'");
+                    literal.append(replacement.charAt(cursor++));
+                } else if (c == '$') {
+                    if (cursor == replacement.length())
+                        throw new IllegalArgumentException("Illegal group reference: group index is missing in '" + replacement + "'");
+                    if (literal.length() > 0) {
+                        parts.add(literal.toString());
+                        groups.add(LITERAL);
+                        literal.setLength(0);
+                    }
+                    c = replacement.charAt(cursor++);
+                    if (c == '{') {
+                        int end = replacement.indexOf('}', cursor);
+                        if (end == -1 || end == cursor)
+                            throw new IllegalArgumentException("Illegal named group reference in '" + replacement + "'");
+                        parts.add(replacement.substring(cursor, end));
+                        groups.add(NAMED_GROUP);
+                        cursor = end + 1;
+                    } else {
+                        int group = c - '0';
+                        if (group < 0 || group > 9)
+                            throw new IllegalArgumentException("Illegal group reference in '" + replacement + "'");
+                        // the group reference is as long as it refers to an existing group
+                        while (cursor < replacement.length()) {
+                            int digit = replacement.charAt(cursor) - '0';
+                            if (digit < 0 || digit > 9 || group * 10 + digit > groupCount)
+                                break;
+                            group = group * 10 + digit;
+                            cursor++;
+                        }
+                        if (group > groupCount)
+                            throw new IllegalArgumentException("No group " + group + " in '" + replacement + "'");
+                        parts.add(null);
+                        groups.add(group);
+                    }
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0 || parts.isEmpty()) {
+                parts.add(literal.toString());
+                groups.add(LITERAL);
+            }
+
+            int[] groupArray = new int[groups.size()];
+            for (int i = 0; i < groupArray.length; i++)
+                groupArray[i] = groups.get(i);
+            return new Template(parts.toArray(new String[parts.size()]), groupArray);
+        }
+
+        String expand(Matcher matcher) {
+            if (parts.length == 1 && groups[0] == LITERAL)
+                return parts[0];
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < parts.length; i++) {
+                String s;
+                switch (groups[i]) {
+                    case LITERAL:
+                        s = parts[i];
+                        break;
+                    case NAMED_GROUP:
+                        s = matcher.group(parts[i]);
+                        break;
+                    default:
+                        s = matcher.group(groups[i]);
+                        break;
+                }
+                if (s != null)
+                    sb.append(s);
+            }
+            return sb.toString();
+        }
+    }
+}
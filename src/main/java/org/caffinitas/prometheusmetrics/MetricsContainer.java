@@ -21,49 +21,96 @@ import com.codahale.metrics.Metric;
 import io.prometheus.client.Prometheus;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 class MetricsContainer {
     final String name;
     final String help;
     final Prometheus.MetricType type;
     final String typeName;
-    private volatile List<MetricInfo> metrics = new ArrayList<>();
+    final byte[] textHeader;
+    final byte[][] textNames;
+    final byte[][] textSuffixes;
+    final byte[] protobufHeader;
+
+    /**
+     * Series by codahale name in registration order, guarded by {@code this}.
+     */
+    private final Map<String, MetricInfo> series = new LinkedHashMap<>();
+    /**
+     * Immutable copy of the series for encoders, {@code null} after a change until the next scrape.
+     */
+    private volatile List<MetricInfo> snapshot = Collections.emptyList();
+
+    /**
+     * Time taken to collect and encode this container in the last sampled scrape.
+     */
+    volatile long sampledCollectNanos;
+
+    /**
+     * Set while this container is suspect or quarantined, see {@link Quarantine}.
+     */
+    volatile Quarantine.State quarantine;
 
     MetricsContainer(String name, String help, Prometheus.MetricType type) {
         this.name = name;
         this.help = help;
         this.type = type;
         this.typeName = type.name().toLowerCase();
+        this.textHeader = ResponseFormat.TextFormat.familyHeader(this);
+        this.textNames = ResponseFormat.TextFormat.sampleNames(this);
+        this.textSuffixes = ResponseFormat.TextFormat.sampleSuffixes(this);
+        this.protobufHeader = ProtobufOutput.familyHeader(name, "from dropwizard/codahale " + name, type);
     }
 
     List<MetricInfo> getMetrics() {
-        return metrics;
+        List<MetricInfo> metrics = snapshot;
+        if (metrics != null)
+            return metrics;
+        synchronized (this) {
+            metrics = snapshot;
+            if (metrics == null)
+                snapshot = metrics = Collections.unmodifiableList(new ArrayList<>(series.values()));
+            return metrics;
+        }
+    }
+
+    /**
+     * Number of series, without collecting them.
+     */
+    synchronized int size() {
+        return series.size();
     }
 
     MetricsContainer addMetric(String s, Metric metric, String... labels) {
-        List<MetricInfo> copy = new ArrayList<>(metrics);
-        copy.add(new MetricInfo(s, metric, labels));
-        metrics = copy;
-        return this;
+        return add(new MetricInfo<>(s, metric, labels));
     }
 
     MetricsContainer addMetric(String s, Metric metric, String[][] labels) {
-        List<MetricInfo> copy = new ArrayList<>(metrics);
-        copy.add(new MetricInfo(s, metric, labels));
-        metrics = copy;
+        return add(new MetricInfo<>(s, metric, labels));
+    }
+
+    /**
+     * Whether a series with the codahale name {@code codahaleName} exists.
+     */
+    synchronized boolean containsMetric(String codahaleName) {
+        return series.containsKey(codahaleName);
+    }
+
+    private synchronized MetricsContainer add(MetricInfo metric) {
+        if (series.putIfAbsent(metric.sourceName, metric) != null)
+            throw new IllegalArgumentException("Duplicate series '" + metric.sourceName + "' in metrics family '" + name + '\'');
+        snapshot = null;
         return this;
     }
 
-    boolean removeMetric(String codahaleName) {
-        for (int i = 0; i < metrics.size(); i++) {
-            if (metrics.get(i).sourceName.equals(codahaleName)) {
-                List<MetricInfo> copy = new ArrayList<>(metrics);
-                copy.remove(i);
-                metrics = copy;
-                return true;
-            }
-        }
-        return false;
+    synchronized boolean removeMetric(String codahaleName) {
+        if (series.remove(codahaleName) == null)
+            return false;
+        snapshot = null;
+        return true;
     }
 }
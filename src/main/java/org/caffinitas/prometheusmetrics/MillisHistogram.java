@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import io.prometheus.client.Prometheus;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Cumulative histogram of durations with millisecond buckets, exported in the {@code _bucket} (with
+ * the {@code le} label), {@code _sum} and {@code _count} counter families of {@link Families}.
+ * The bucket counts are recorded non-cumulative into {@link LongAdder}s, the cumulative counts are
+ * computed when read.
+ */
+final class MillisHistogram {
+    private final long[] boundsMillis;
+    private final long[] boundsNanos;
+    private final LongAdder[] buckets;
+    private final LongAdder sumNanos = new LongAdder();
+    private final LongAdder count = new LongAdder();
+
+    MillisHistogram(long[] boundsMillis) {
+        this.boundsMillis = boundsMillis;
+        this.boundsNanos = new long[boundsMillis.length];
+        for (int i = 0; i < boundsMillis.length; i++)
+            boundsNanos[i] = TimeUnit.MILLISECONDS.toNanos(boundsMillis[i]);
+        this.buckets = new LongAdder[boundsMillis.length + 1];
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    void recordNanos(long nanos) {
+        int i = 0;
+        while (i < boundsNanos.length && nanos > boundsNanos[i])
+            i++;
+        buckets[i].increment();
+        sumNanos.add(nanos);
+        count.increment();
+    }
+
+    void recordMillis(long millis) {
+        recordNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Adds the series of this histogram to {@code families}. The {@code _bucket} series get the source
+     * name {@code sourceName + '/' + le}.
+     */
+    MillisHistogram addSeries(Families families, String sourceName, String... labels) {
+        String[] bucketLabels = Arrays.copyOf(labels, labels.length + 2);
+        bucketLabels[labels.length] = "le";
+        for (int i = 0; i <= boundsMillis.length; i++) {
+            String le = i < boundsMillis.length ? Long.toString(boundsMillis[i]) : "+Inf";
+            bucketLabels[labels.length + 1] = le;
+            families.buckets.addMetric(sourceName + '/' + le, bucket(i), bucketLabels);
+        }
+        families.sums.addMetric(sourceName, (CountingMetric) () -> TimeUnit.NANOSECONDS.toMillis(sumNanos.sum()), labels);
+        families.counts.addMetric(sourceName, (CountingMetric) count::sum, labels);
+        return this;
+    }
+
+    /**
+     * Number of recorded durations less than or equal to the upper bound of bucket {@code index}.
+     */
+    private CountingMetric bucket(int index) {
+        return () -> {
+            long c = 0L;
+            for (int i = 0; i <= index; i++)
+                c += buckets[i].sum();
+            return c;
+        };
+    }
+
+    /**
+     * The {@code _bucket}, {@code _sum} and {@code _count} families of histograms.
+     */
+    static final class Families {
+        final MetricsContainer buckets;
+        final MetricsContainer sums;
+        final MetricsContainer counts;
+
+        Families(String name, String help, String sumHelp, String countHelp) {
+            this.buckets = new MetricsContainer(name + "_bucket", help, Prometheus.MetricType.COUNTER);
+            this.sums = new MetricsContainer(name + "_sum", sumHelp, Prometheus.MetricType.COUNTER);
+            this.counts = new MetricsContainer(name + "_count", countHelp, Prometheus.MetricType.COUNTER);
+        }
+
+        void registerMetrics(Consumer<MetricsContainer> registration) {
+            registration.accept(buckets);
+            registration.accept(sums);
+            registration.accept(counts);
+        }
+    }
+}
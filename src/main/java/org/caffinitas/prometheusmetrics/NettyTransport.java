@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the event loop group, server channel and allocator configured via the {@code transport},
+ * {@code workerThreads} and {@code allocator} options.
+ */
+final class NettyTransport {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NettyTransport.class);
+
+    private static final String THREAD_NAME_PREFIX = "prometheus-metrics-netty";
+
+    private NettyTransport() {
+    }
+
+    /**
+     * Creates the event loop group that accepts connections and serves requests. Uses native epoll
+     * for {@code transport: auto} if available, which requires Linux and the native library from
+     * {@code netty-transport-native-epoll} on the classpath.
+     */
+    static EventLoopGroup newEventLoopGroup(ExporterConfig config) {
+        int threads = Math.max(1, config.workerThreads);
+        DefaultThreadFactory threadFactory = new DefaultThreadFactory(THREAD_NAME_PREFIX, true);
+        switch (config.transport) {
+            case "epoll":
+                Epoll.ensureAvailability();
+                return new EpollEventLoopGroup(threads, threadFactory);
+            case "auto":
+                if (Epoll.isAvailable())
+                    return new EpollEventLoopGroup(threads, threadFactory);
+                LOGGER.info("Native epoll transport not available, using NIO: {}", String.valueOf(Epoll.unavailabilityCause()));
+                return new NioEventLoopGroup(threads, threadFactory);
+            case "nio":
+                return new NioEventLoopGroup(threads, threadFactory);
+            default:
+                throw new IllegalArgumentException("Unknown transport '" + config.transport + "', must be one of auto, epoll or nio");
+        }
+    }
+
+    /**
+     * The server channel class matching the type of {@code group}.
+     */
+    static Class<? extends ServerChannel> serverChannel(EventLoopGroup group) {
+        if (group instanceof EpollEventLoopGroup)
+            return EpollServerSocketChannel.class;
+        if (group instanceof NioEventLoopGroup)
+            return NioServerSocketChannel.class;
+        throw new IllegalArgumentException("Unsupported event loop group " + group.getClass().getName() + ", must be an epoll or NIO event loop group");
+    }
+
+    static ByteBufAllocator allocator(ExporterConfig config) {
+        switch (config.allocator) {
+            case "pooled":
+                return PooledByteBufAllocator.DEFAULT;
+            case "unpooled":
+                return UnpooledByteBufAllocator.DEFAULT;
+            default:
+                throw new IllegalArgumentException("Unknown allocator '" + config.allocator + "', must be pooled or unpooled");
+        }
+    }
+}
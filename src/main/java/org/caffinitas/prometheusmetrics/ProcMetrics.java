@@ -0,0 +1,431 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import io.prometheus.client.Prometheus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Native memory, I/O and cgroup (v1 and v2) limits and usage of the process on Linux, read from
+ * {@code /proc/self} and {@code /sys/fs/cgroup}, plus the JVM's direct and mapped buffer pools.
+ * <p>
+ * Each file is opened once and re-read from position 0 into a reused buffer when a scrape fetches
+ * its family, then parsed in place. The values are returned in a {@link Readout}, so a scrape only
+ * allocates one array per family and does not see the values of concurrent scrapes. Families whose files do not exist,
+ * for example on other operating systems or without cgroups, are not registered. Files that cannot
+ * be read during a scrape keep their last values.
+ * </p>
+ */
+final class ProcMetrics {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProcMetrics.class);
+
+    private static final String[] STATUS_KEYS = {
+            "VmPeak", "VmSize", "VmHWM", "VmRSS", "RssAnon", "RssFile", "RssShmem", "VmData", "VmSwap", "Threads"
+    };
+    private static final String[] SMAPS_ROLLUP_KEYS = {
+            "Rss", "Pss", "Shared_Clean", "Shared_Dirty", "Private_Clean", "Private_Dirty", "Anonymous", "Swap", "SwapPss"
+    };
+    private static final String[] IO_KEYS = {
+            "rchar", "wchar", "syscr", "syscw", "read_bytes", "write_bytes", "cancelled_write_bytes"
+    };
+    private static final String[] MEMORY_STAT_V2_KEYS = {
+            "anon", "file", "kernel_stack", "pagetables", "sock", "shmem", "file_mapped", "file_dirty", "file_writeback"
+    };
+    private static final String[] MEMORY_STAT_V1_KEYS = {
+            "cache", "rss", "rss_huge", "shmem", "mapped_file", "dirty", "writeback", "swap"
+    };
+    private static final String[] CPU_STAT_V2_KEYS = {
+            "usage_usec", "user_usec", "system_usec", "nr_periods", "nr_throttled", "throttled_usec"
+    };
+    private static final String[] CPU_STAT_V1_KEYS = {
+            "nr_periods", "nr_throttled", "throttled_time"
+    };
+
+    private final Path procSelf;
+    private final Path cgroupRoot;
+    private final List<ProcFile> files = new ArrayList<>();
+
+    ProcMetrics() {
+        this(Paths.get("/proc"), Paths.get("/sys/fs/cgroup"));
+    }
+
+    ProcMetrics(Path proc, Path cgroupRoot) {
+        this.procSelf = proc.resolve("self");
+        this.cgroupRoot = cgroupRoot;
+    }
+
+    void registerMetrics(Consumer<MetricsContainer> registration) {
+        keyValues(registration, "JVM_Process_Status", "process status from /proc/self/status",
+                procSelf.resolve("status"), STATUS_KEYS);
+        keyValues(registration, "JVM_Process_SmapsRollup", "process memory from /proc/self/smaps_rollup",
+                procSelf.resolve("smaps_rollup"), SMAPS_ROLLUP_KEYS);
+        keyValues(registration, "JVM_Process_IO", "process I/O from /proc/self/io",
+                procSelf.resolve("io"), IO_KEYS);
+
+        if (Files.exists(cgroupRoot.resolve("cgroup.controllers"))) {
+            Path dir = cgroupDir(cgroupRoot, "");
+            values(registration, "JVM_Cgroup_Memory", "cgroup memory usage and limit",
+                    new ValueFile(dir.resolve("memory.current")), "current",
+                    new ValueFile(dir.resolve("memory.max")), "max");
+            keyValues(registration, "JVM_Cgroup_MemoryStat", "cgroup memory.stat",
+                    dir.resolve("memory.stat"), MEMORY_STAT_V2_KEYS);
+            keyValues(registration, "JVM_Cgroup_Cpu", "cgroup cpu.stat",
+                    dir.resolve("cpu.stat"), CPU_STAT_V2_KEYS);
+            cpuLimit(registration, new ValueFile(dir.resolve("cpu.max")), null);
+        } else {
+            Path memory = cgroupDir(cgroupRoot.resolve("memory"), "memory");
+            values(registration, "JVM_Cgroup_Memory", "cgroup memory usage and limit",
+                    new ValueFile(memory.resolve("memory.usage_in_bytes")), "current",
+                    new ValueFile(memory.resolve("memory.limit_in_bytes")), "max");
+            keyValues(registration, "JVM_Cgroup_MemoryStat", "cgroup memory.stat",
+                    memory.resolve("memory.stat"), MEMORY_STAT_V1_KEYS);
+            Path cpu = cgroupDir(cgroupRoot.resolve("cpu"), "cpu");
+            keyValues(registration, "JVM_Cgroup_Cpu", "cgroup cpu.stat",
+                    cpu.resolve("cpu.stat"), CPU_STAT_V1_KEYS);
+            cpuLimit(registration, new ValueFile(cpu.resolve("cpu.cfs_quota_us")), new ValueFile(cpu.resolve("cpu.cfs_period_us")));
+        }
+
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            String name = "JVM_BufferPool_" + pool.getName().replace(' ', '_');
+            registration.accept(new MetricsContainer(name, "from Java MXBeans", Prometheus.MetricType.GAUGE)
+                    .addMetric(name + "_Count", (LongValueGauge) pool::getCount, "type", "count")
+                    .addMetric(name + "_MemoryUsed", (LongValueGauge) pool::getMemoryUsed, "type", "memoryUsed")
+                    .addMetric(name + "_TotalCapacity", (LongValueGauge) pool::getTotalCapacity, "type", "totalCapacity"));
+        }
+    }
+
+    void close() {
+        for (ProcFile file : files)
+            file.close();
+    }
+
+    /**
+     * The directory of the process' cgroup below {@code hierarchy}, as listed in {@code /proc/self/cgroup}
+     * for the given v1 controller or for the v2 hierarchy ({@code controller} is empty). Falls back to
+     * {@code hierarchy}, if the process' cgroup is not visible, which is the case in most containers.
+     */
+    private Path cgroupDir(Path hierarchy, String controller) {
+        try {
+            for (String line : Files.readAllLines(procSelf.resolve("cgroup"), StandardCharsets.UTF_8)) {
+                String[] parts = line.split(":", 3);
+                if (parts.length != 3)
+                    continue;
+                boolean match = controller.isEmpty()
+                        ? parts[0].equals("0") && parts[1].isEmpty()
+                        : ("," + parts[1] + ',').contains(',' + controller + ',');
+                if (match) {
+                    Path dir = hierarchy.resolve(parts[2].startsWith("/") ? parts[2].substring(1) : parts[2]);
+                    if (Files.isDirectory(dir))
+                        return dir;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Failed to read {}", procSelf.resolve("cgroup"), e);
+        }
+        return hierarchy;
+    }
+
+    private void keyValues(Consumer<MetricsContainer> registration, String name, String help, Path path, String[] keys) {
+        KeyValueFile file = new KeyValueFile(path, keys);
+        if (!file.refresh())
+            return;
+        files.add(file);
+        FileContainer container = new FileContainer(name, help, file);
+        boolean any = false;
+        for (int i = 0; i < keys.length; i++) {
+            if (!file.found[i])
+                continue;
+            int index = i;
+            container.addMetric(name + '_' + keys[i], (FileContainer.LongValue) () -> file.values[index], "type", keys[i]);
+            any = true;
+        }
+        if (any)
+            registration.accept(container);
+    }
+
+    private void values(Consumer<MetricsContainer> registration, String name, String help,
+                        ValueFile first, String firstType, ValueFile second, String secondType) {
+        boolean hasFirst = first.refresh();
+        boolean hasSecond = second.refresh();
+        if (!hasFirst && !hasSecond)
+            return;
+        FileContainer container = new FileContainer(name, help, first, second);
+        if (hasFirst)
+            container.addMetric(name + '_' + firstType, (FileContainer.DoubleValue) () -> first.value(0), "type", firstType);
+        if (hasSecond)
+            container.addMetric(name + '_' + secondType, (FileContainer.DoubleValue) () -> second.value(0), "type", secondType);
+        files.add(first);
+        files.add(second);
+        registration.accept(container);
+    }
+
+    /**
+     * The CPU limit in cores, {@code +Inf} if unlimited, from {@code cpu.max} ({@code period} is {@code null})
+     * or from {@code cpu.cfs_quota_us} and {@code cpu.cfs_period_us}.
+     */
+    private void cpuLimit(Consumer<MetricsContainer> registration, ValueFile quota, ValueFile period) {
+        if (!quota.refresh() || (period != null && !period.refresh()))
+            return;
+        ValueFile periodFile = period != null ? period : quota;
+        int periodIndex = period != null ? 0 : 1;
+        FileContainer container = period != null ? new FileContainer("JVM_Cgroup_CpuLimit", "cgroup CPU limit in cores", quota, period)
+                                                  : new FileContainer("JVM_Cgroup_CpuLimit", "cgroup CPU limit in cores", quota);
+        container.addMetric("JVM_Cgroup_CpuLimit", (FileContainer.DoubleValue) () -> {
+            double q = quota.value(0);
+            double p = periodFile.value(periodIndex);
+            return q < 0d || Double.isInfinite(q) || p <= 0d ? Double.POSITIVE_INFINITY : q / p;
+        });
+        files.add(quota);
+        if (period != null)
+            files.add(period);
+        registration.accept(container);
+    }
+
+    /**
+     * Container that re-reads its files when a scrape fetches its series and binds their values to
+     * the returned {@link Readout}.
+     */
+    private static final class FileContainer extends MetricsContainer {
+        private final ProcFile[] files;
+
+        FileContainer(String name, String help, ProcFile... files) {
+            super(name, help, Prometheus.MetricType.GAUGE);
+            this.files = files;
+        }
+
+        @Override
+        List<MetricInfo> getMetrics() {
+            List<MetricInfo> series = super.getMetrics();
+            long[] values = new long[series.size()];
+            synchronized (files) {
+                for (ProcFile file : files)
+                    file.refresh();
+                for (int i = 0; i < values.length; i++) {
+                    Object metric = series.get(i).metric;
+                    if (metric instanceof LongValue)
+                        values[i] = ((LongValue) metric).read();
+                    else if (metric instanceof DoubleValue)
+                        values[i] = Double.doubleToRawLongBits(((DoubleValue) metric).read());
+                }
+            }
+            return new Readout(series, values);
+        }
+
+        /**
+         * A {@code long} value parsed from the files, read with the lock of the files held.
+         */
+        @FunctionalInterface
+        interface LongValue extends Readout.LongValue {
+            long read();
+
+            @Override
+            default long getLong() {
+                throw new UnsupportedOperationException("value is bound to a readout");
+            }
+        }
+
+        /**
+         * A {@code double} value parsed from the files, read with the lock of the files held.
+         */
+        @FunctionalInterface
+        interface DoubleValue extends Readout.DoubleValue {
+            double read();
+
+            @Override
+            default double getDouble() {
+                throw new UnsupportedOperationException("value is bound to a readout");
+            }
+        }
+    }
+
+    /**
+     * A file that is kept open and re-read into a reused buffer.
+     */
+    abstract static class ProcFile {
+        private final Path path;
+        private FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(4096);
+        private boolean failed;
+
+        ProcFile(Path path) {
+            this.path = path;
+        }
+
+        /**
+         * Reads and parses the file.
+         *
+         * @return {@code false}, if the file cannot be read
+         */
+        final boolean refresh() {
+            try {
+                if (channel == null)
+                    channel = FileChannel.open(path, StandardOpenOption.READ);
+                buffer.clear();
+                long position = 0L;
+                for (int n; (n = channel.read(buffer, position)) > 0; ) {
+                    position += n;
+                    if (!buffer.hasRemaining()) {
+                        ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                        buffer.flip();
+                        larger.put(buffer);
+                        buffer = larger;
+                    }
+                }
+                parse(buffer.array(), buffer.position());
+                failed = false;
+                return true;
+            } catch (IOException | RuntimeException e) {
+                if (!failed)
+                    LOGGER.debug("Cannot read {}: {}", path, e.toString());
+                failed = true;
+                close();
+                return false;
+            }
+        }
+
+        abstract void parse(byte[] bytes, int length);
+
+        final void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Lines like {@code VmRSS:  1234 kB}, {@code rchar: 123} or {@code anon 123}. Values with a
+     * {@code kB} unit are converted to bytes.
+     */
+    static final class KeyValueFile extends ProcFile {
+        private final byte[][] keys;
+        final long[] values;
+        final boolean[] found;
+
+        KeyValueFile(Path path, String[] keys) {
+            super(path);
+            this.keys = new byte[keys.length][];
+            for (int i = 0; i < keys.length; i++)
+                this.keys[i] = keys[i].getBytes(StandardCharsets.US_ASCII);
+            this.values = new long[keys.length];
+            this.found = new boolean[keys.length];
+        }
+
+        @Override
+        void parse(byte[] bytes, int length) {
+            int pos = 0;
+            while (pos < length) {
+                int keyEnd = pos;
+                while (keyEnd < length && bytes[keyEnd] != ':' && bytes[keyEnd] != ' ' && bytes[keyEnd] != '\t' && bytes[keyEnd] != '\n')
+                    keyEnd++;
+                int key = key(bytes, pos, keyEnd);
+
+                int p = keyEnd;
+                while (p < length && (bytes[p] == ':' || bytes[p] == ' ' || bytes[p] == '\t'))
+                    p++;
+                if (key >= 0 && p < length && bytes[p] >= '0' && bytes[p] <= '9') {
+                    long v = 0L;
+                    while (p < length && bytes[p] >= '0' && bytes[p] <= '9')
+                        v = v * 10L + (bytes[p++] - '0');
+                    if (p + 2 < length && bytes[p] == ' ' && bytes[p + 1] == 'k' && bytes[p + 2] == 'B')
+                        v *= 1024L;
+                    values[key] = v;
+                    found[key] = true;
+                }
+
+                while (p < length && bytes[p] != '\n')
+                    p++;
+                pos = p + 1;
+            }
+        }
+
+        private int key(byte[] bytes, int from, int to) {
+            outer:
+            for (int k = 0; k < keys.length; k++) {
+                byte[] key = keys[k];
+                if (key.length != to - from)
+                    continue;
+                for (int i = 0; i < key.length; i++) {
+                    if (key[i] != bytes[from + i])
+                        continue outer;
+                }
+                return k;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Up to two whitespace separated numbers, {@code max} is read as {@code +Inf}.
+     */
+    static final class ValueFile extends ProcFile {
+        private final double[] values = new double[2];
+
+        ValueFile(Path path) {
+            super(path);
+        }
+
+        double value(int index) {
+            return values[index];
+        }
+
+        @Override
+        void parse(byte[] bytes, int length) {
+            int p = 0;
+            for (int i = 0; i < values.length; i++) {
+                while (p < length && (bytes[p] == ' ' || bytes[p] == '\t'))
+                    p++;
+                if (p + 2 < length && bytes[p] == 'm' && bytes[p + 1] == 'a' && bytes[p + 2] == 'x') {
+                    values[i] = Double.POSITIVE_INFINITY;
+                    p += 3;
+                    continue;
+                }
+                boolean negative = p < length && bytes[p] == '-';
+                if (negative)
+                    p++;
+                if (p >= length || bytes[p] < '0' || bytes[p] > '9') {
+                    if (i == 0)
+                        throw new IllegalArgumentException("not a number");
+                    break;
+                }
+                long v = 0L;
+                while (p < length && bytes[p] >= '0' && bytes[p] <= '9')
+                    v = v * 10L + (bytes[p++] - '0');
+                values[i] = negative ? -v : v;
+            }
+        }
+    }
+}
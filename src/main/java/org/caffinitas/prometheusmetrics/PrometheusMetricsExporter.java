@@ -22,13 +22,13 @@ import com.codahale.metrics.Timer;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.compression.ZlibWrapper;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.util.CharsetUtil;
 import io.prometheus.client.Prometheus;
 import org.slf4j.Logger;
@@ -37,13 +37,17 @@ import org.slf4j.LoggerFactory;
 import javax.activation.MimeType;
 import javax.activation.MimeTypeParseException;
 import javax.net.ssl.SSLException;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.security.cert.CertificateException;
 import java.util.*;
-import java.util.regex.Matcher;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static io.netty.handler.codec.http.HttpHeaders.Names.*;
 import static io.netty.handler.codec.http.HttpMethod.GET;
@@ -60,32 +64,98 @@ public final class PrometheusMetricsExporter {
     private final MetricRegistry registry;
     private final MetricsListener metricsListener;
     private final ExporterConfig config;
-
+    private final ScrapeCache scrapeCache;
+    private final CollectionExecutor collectionExecutor;
+    private final GaugeSampler gaugeSampler;
+    private final MetricMappings mappings;
+    private final RegistrationQueue registrationQueue;
+    private final GcPauseMetrics gcPauses;
+    private final ProcMetrics procMetrics;
+    private final ExporterMetrics exporterMetrics;
+    private final Quarantine quarantine;
+
+    private final EventLoopGroup sharedEventLoopGroup;
     private Channel nettyChannel;
 
-    private volatile Map<String, MetricsContainer> metrics = new HashMap<>();
+    private final ContainerStore metrics = new ContainerStore();
 
     PrometheusMetricsExporter(MetricRegistry registry, ExporterConfig config) {
+        this(registry, config, null);
+    }
+
+    /**
+     * @param sharedEventLoopGroup event loop group to serve HTTP requests with instead of creating
+     *                             one, it is not shut down by {@link #stop()}
+     */
+    PrometheusMetricsExporter(MetricRegistry registry, ExporterConfig config, EventLoopGroup sharedEventLoopGroup) {
         this.registry = registry;
         this.config = config;
+        this.sharedEventLoopGroup = sharedEventLoopGroup;
 
-        for (ExporterConfig.Mapping mapping : config.mappings) {
-            mapping.regex = Pattern.compile(mapping.pattern);
-            LOGGER.info("Initializing Prometheus metrics mapping with regex '{}'", mapping.regex);
-        }
+        mappings = new MetricMappings(config.exclusions, config.mappings);
 
-        for (ExporterConfig.Exclusion exclusion : config.exclusions) {
-            exclusion.regex = Pattern.compile(exclusion.pattern);
-            LOGGER.info("Initializing Prometheus metrics exclusion with regex '{}'", exclusion.regex);
+        boolean sampledGauges = false;
+        for (ExporterConfig.Mapping mapping : config.mappings) {
+            if (mapping.refreshInterval != null) {
+                mapping.refreshIntervalMillis = GaugeSampler.parseInterval(mapping.refreshInterval);
+                if (mapping.refreshIntervalMillis <= 0L)
+                    throw new IllegalArgumentException("Refresh interval of mapping '" + mapping.pattern + "' must be positive");
+                LOGGER.info("Sampling gauges of mapping with regex '{}' every {} ms", mapping.regex, mapping.refreshIntervalMillis);
+                sampledGauges = true;
+            }
         }
+        gaugeSampler = sampledGauges ? new GaugeSampler() : null;
 
         LOGGER.info("Setting up Prometheus metrics exporter on {} port {} and SSL {}", config.bindAddress, config.httpPort, config.ssl ? "enabled" : "disabled");
 
+        exporterMetrics = new ExporterMetrics(config, metrics::snapshot);
+        exporterMetrics.registerMetrics(this::addMetricsContainer);
+        if (config.quarantineBudgetMillis > 0) {
+            quarantine = new Quarantine(config, metrics::snapshot);
+            quarantine.registerMetrics(this::addMetricsContainer);
+        } else {
+            quarantine = null;
+        }
+
         metricsListener = new MetricsListener();
-        registry.addListener(metricsListener);
+        if (config.asyncRegistration) {
+            LOGGER.info("Mapping registered metrics asynchronously");
+            registrationQueue = new RegistrationQueue(metricsListener::map, this::batchRegistrations);
+            registrationQueue.registerMetrics(this::addMetricsContainer);
+        } else {
+            registrationQueue = null;
+        }
+        batchRegistrations(() -> {
+            registry.addListener(metricsListener);
+
+            if (config.includeJvm)
+                JvmMetrics.register(this::addMetricsContainer, config);
+        });
+        if (config.includeJvm) {
+            gcPauses = new GcPauseMetrics();
+            gcPauses.registerMetrics(this::addMetricsContainer);
+            procMetrics = new ProcMetrics();
+            procMetrics.registerMetrics(this::addMetricsContainer);
+        } else {
+            gcPauses = null;
+            procMetrics = null;
+        }
 
-        if (config.includeJvm)
-            JvmMetrics.register(this::addMetricsContainer);
+        if (config.collectionThreads > 0) {
+            LOGGER.info("Collecting Prometheus metrics using {} threads", config.collectionThreads);
+            collectionExecutor = new CollectionExecutor(config.collectionThreads, config.collectionQueueSize, config.collectionVirtualThreads);
+            collectionExecutor.registerMetrics(this::addMetricsContainer);
+        } else {
+            collectionExecutor = null;
+        }
+
+        if (config.scrapeCacheMillis > 0) {
+            LOGGER.info("Caching Prometheus scrape responses for {} ms", config.scrapeCacheMillis);
+            scrapeCache = new ScrapeCache(config.scrapeCacheMillis);
+            addMetricsContainer(scrapeCache.metricsContainer());
+        } else {
+            scrapeCache = null;
+        }
 
         try {
             setupNetty();
@@ -94,16 +164,29 @@ public final class PrometheusMetricsExporter {
         }
     }
 
-    synchronized void addMetricsContainer(MetricsContainer container) {
-        Map<String, MetricsContainer> copy = new HashMap<>(metrics);
-        copy.put(container.name, container);
-        metrics = copy;
+    void addMetricsContainer(MetricsContainer container) {
+        metrics.add(container);
     }
 
-    synchronized void removeMetricsContainer(String name) {
-        Map<String, MetricsContainer> copy = new HashMap<>(metrics);
-        copy.remove(name);
-        metrics = copy;
+    void removeMetricsContainer(String name) {
+        metrics.remove(name);
+    }
+
+    /**
+     * Runs {@code registrations}, for example registering the metrics of a new keyspace with all its
+     * tables in the codahale registry, and publishes all resulting changes to scrapes at once.
+     * Only changes made by the calling thread are part of the batch. If registrations are mapped
+     * asynchronously, the registration thread publishes them in its own batches.
+     *
+     * @param registrations code that registers or removes metrics
+     */
+    public void batchRegistrations(Runnable registrations) {
+        metrics.beginBatch();
+        try {
+            registrations.run();
+        } finally {
+            metrics.endBatch();
+        }
     }
 
     /**
@@ -115,18 +198,11 @@ public final class PrometheusMetricsExporter {
      * @return mapped name or {@code null}, if not mapped
      */
     public String debugGetMappedName(String codahaleName) {
-        for (ExporterConfig.Exclusion exclusion : config.exclusions) {
-            if (exclusion.regex.matcher(codahaleName).matches()) {
-                return null;
-            }
+        if (mappings.isExcluded(codahaleName)) {
+            return null;
         }
-        for (ExporterConfig.Mapping mapping : config.mappings) {
-            Matcher matcher = mapping.regex.matcher(codahaleName);
-            if (matcher.matches()) {
-                return matcher.replaceAll(mapping.name);
-            }
-        }
-        return null;
+        MetricMappings.Match match = mappings.match(codahaleName);
+        return match != null ? match.name() : null;
     }
 
     /**
@@ -138,24 +214,32 @@ public final class PrometheusMetricsExporter {
      * @return mapped labels or {@code null}, if not mapped
      */
     public Map<String, String> debugGetMappedLabels(String codahaleName) {
-        for (ExporterConfig.Exclusion exclusion : config.exclusions) {
-            if (exclusion.regex.matcher(codahaleName).matches()) {
-                return null;
-            }
+        if (mappings.isExcluded(codahaleName)) {
+            return null;
         }
-        for (ExporterConfig.Mapping mapping : config.mappings) {
-            Matcher matcher = mapping.regex.matcher(codahaleName);
-            if (matcher.matches()) {
-                Map<String, String> labels = new HashMap<>();
-                for (ExporterConfig.Label label : mapping.labels) {
-                    labels.put(
-                            matcher.replaceAll(label.label),
-                            matcher.replaceAll(label.value));
-                }
-                return labels;
-            }
+        MetricMappings.Match match = mappings.match(codahaleName);
+        if (match == null) {
+            return null;
+        }
+        Map<String, String> labels = new HashMap<>();
+        for (String[] label : match.labels()) {
+            labels.put(label[0], label[1]);
         }
-        return null;
+        return labels;
+    }
+
+    /**
+     * Waits until all metrics registered or removed in the codahale registry before this call have been
+     * mapped and are visible to scrapes. Returns immediately, unless metrics are mapped asynchronously
+     * ({@code asyncRegistration} option).
+     *
+     * @param timeout maximum time to wait
+     * @param unit unit of {@code timeout}
+     * @return {@code false}, if the timeout elapsed before all metrics have been mapped
+     * @throws InterruptedException if the current thread was interrupted while waiting
+     */
+    public boolean awaitRegistrations(long timeout, TimeUnit unit) throws InterruptedException {
+        return registrationQueue == null || registrationQueue.await(timeout, unit);
     }
 
     /**
@@ -166,33 +250,78 @@ public final class PrometheusMetricsExporter {
 
         registry.removeListener(metricsListener);
 
+        if (registrationQueue != null)
+            registrationQueue.stop();
+
         nettyChannel.close();
         nettyChannel.closeFuture().syncUninterruptibly();
+
+        if (collectionExecutor != null)
+            collectionExecutor.shutdown();
+
+        if (gaugeSampler != null)
+            gaugeSampler.shutdown();
+
+        if (gcPauses != null)
+            gcPauses.close();
+
+        if (procMetrics != null)
+            procMetrics.close();
     }
 
-    private void sendMetrics(ResponseFormat responseFormat, OutputStream output) throws IOException {
-        BufferedOutputStream buffered = new BufferedOutputStream(output);
-        Object out = responseFormat.createOutput(buffered);
-        for (MetricsContainer metricsContainer : metrics.values()) {
-            try {
-                if (LOGGER.isTraceEnabled()) {
-                    MetricsContainer container = metricsContainer;
-                    LOGGER.trace(".. sending container {} of type {}", container.name, container.type);
-                    for (MetricInfo metric : container.getMetrics()) {
-                        LOGGER.trace(".... metric {} ({})", metric.sourceName, metric.metric.getClass().getName());
-                        for (String[] label : metric.labels) {
-                            LOGGER.trace("....   label: {}={} ", label[0], label[1]);
-                        }
-                    }
-                }
-                responseFormat.writeMetric(metricsContainer, out);
-            } catch (Exception ex) {
-                LOGGER.error("Not including metrics for '" + metricsContainer.name + "' due to failure constructing these metrics", ex);
-            }
+    /**
+     * Encodes all metrics like a scrape without a deadline does - used by benchmarks.
+     */
+    void writeMetrics(ResponseFormat responseFormat, OutputStream output) throws IOException {
+        sendMetrics(responseFormat, output, ScrapeDeadline.none(), false);
+    }
+
+    private void sendMetrics(ResponseFormat responseFormat, OutputStream output, ScrapeDeadline deadline, boolean sampled) throws IOException {
+        Object out = responseFormat.createOutput(output);
+        for (MetricsContainer metricsContainer : deadline.containers(metrics.snapshot())) {
+            writeContainer(responseFormat, metricsContainer, out, deadline, sampled);
         }
         LOGGER.trace(".. metrics sent");
         responseFormat.finish(out);
-        buffered.flush();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeContainer(ResponseFormat responseFormat, MetricsContainer metricsContainer, Object out, ScrapeDeadline deadline, boolean sampled) {
+        if (deadline.skip(metricsContainer)) {
+            LOGGER.trace(".. skipping container {}", metricsContainer.name);
+            return;
+        }
+        try {
+            // getMetrics() would read the sources of some containers a second time, for example MXBeans
+            if (LOGGER.isTraceEnabled())
+                LOGGER.trace(".. sending container {} of type {} with {} series", metricsContainer.name, metricsContainer.type, metricsContainer.size());
+            if (quarantine != null) {
+                quarantine.write(responseFormat, metricsContainer, out, sampled);
+            } else if (sampled) {
+                long start = System.nanoTime();
+                responseFormat.writeMetric(metricsContainer, out);
+                metricsContainer.sampledCollectNanos = System.nanoTime() - start;
+            } else {
+                responseFormat.writeMetric(metricsContainer, out);
+            }
+        } catch (Exception ex) {
+            LOGGER.error("Not including metrics for '" + metricsContainer.name + "' due to failure constructing these metrics", ex);
+        }
+    }
+
+    private byte[] collectMetrics(ResponseFormat responseFormat, ZlibWrapper wrapper, ScrapeDeadline deadline, boolean sampled) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(65536);
+        OutputStream output;
+        if (wrapper == ZlibWrapper.GZIP)
+            output = new GZIPOutputStream(bytes, 8192);
+        else if (wrapper == ZlibWrapper.ZLIB)
+            output = new DeflaterOutputStream(bytes, new Deflater(), 8192);
+        else
+            output = bytes;
+        try (OutputStream out = output) {
+            sendMetrics(responseFormat, out, deadline, sampled);
+        }
+        return bytes.toByteArray();
     }
 
     private void setupNetty() throws CertificateException, SSLException {
@@ -205,20 +334,35 @@ public final class PrometheusMetricsExporter {
             sslCtx = null;
         }
 
-        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
-
-        this.nettyChannel = new ServerBootstrap()
-                .option(ChannelOption.SO_BACKLOG, 1024)
-                .group(bossGroup, workerGroup)
-                .channel(NioServerSocketChannel.class)
-                .childHandler(new ServerInitializer(sslCtx))
-                .bind(config.bindAddress, config.httpPort).syncUninterruptibly().channel();
+        // the same event loop group accepts connections and serves them, a metrics endpoint
+        // does not need a separate acceptor thread
+        EventLoopGroup group = sharedEventLoopGroup != null ? sharedEventLoopGroup : NettyTransport.newEventLoopGroup(config);
+        Class<? extends ServerChannel> channelClass = NettyTransport.serverChannel(group);
+        LOGGER.info("Using {} with {}", channelClass.getSimpleName(),
+                sharedEventLoopGroup != null ? "a shared event loop group" : config.workerThreads + " worker threads");
+
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .option(ChannelOption.SO_BACKLOG, config.tcpBacklog)
+                .childOption(ChannelOption.TCP_NODELAY, config.tcpNoDelay)
+                .childOption(ChannelOption.SO_KEEPALIVE, config.tcpKeepAlive)
+                .childOption(ChannelOption.ALLOCATOR, NettyTransport.allocator(config))
+                .group(group)
+                .channel(channelClass)
+                .childHandler(new ServerInitializer(sslCtx));
+        if (config.tcpSendBufferSize > 0)
+            bootstrap.childOption(ChannelOption.SO_SNDBUF, config.tcpSendBufferSize);
+        try {
+            this.nettyChannel = bootstrap.bind(config.bindAddress, config.httpPort).syncUninterruptibly().channel();
+        } catch (RuntimeException e) {
+            if (sharedEventLoopGroup == null)
+                group.shutdownGracefully();
+            throw e;
+        }
 
         nettyChannel.closeFuture().addListener(f -> {
             LOGGER.info("Shutting down listener");
-            bossGroup.shutdownGracefully();
-            workerGroup.shutdownGracefully();
+            if (sharedEventLoopGroup == null)
+                group.shutdownGracefully();
         });
     }
 
@@ -236,13 +380,27 @@ public final class PrometheusMetricsExporter {
             if (sslCtx != null) {
                 p.addLast(sslCtx.newHandler(ch.alloc()));
             }
+            p.addLast("byteCounter", new ExporterMetrics.ByteCounter());
             p.addLast("decoder", new HttpRequestDecoder());
             p.addLast("encoder", new HttpResponseEncoder());
             p.addLast("compressor", new HttpContentCompressor());
+            p.addLast("chunkedWriter", new ChunkedWriteHandler());
             p.addLast("handler", new ServerHandler());
         }
     }
 
+    private static final ScrapeCompressor COMPRESSOR = new ScrapeCompressor();
+
+    /**
+     * Exposes the content encoding negotiation of {@link HttpContentCompressor}, so that cached
+     * responses can be compressed once and passed through the channel's compressor.
+     */
+    private static final class ScrapeCompressor extends HttpContentCompressor {
+        ZlibWrapper wrapper(String acceptEncoding) {
+            return acceptEncoding != null ? determineWrapper(acceptEncoding) : null;
+        }
+    }
+
     private class ServerHandler extends ChannelInboundHandlerAdapter {
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) {
@@ -268,43 +426,137 @@ public final class PrometheusMetricsExporter {
                 ResponseFormat responseFormat = responseFormat(req);
 
                 boolean keepAlive = HttpHeaders.isKeepAlive(req);
-                HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
-                HttpHeaders.setHeader(response, CONTENT_TYPE, responseFormat.contentType());
-                HttpHeaders.setDateHeader(response, DATE, new Date());
-                HttpHeaders.setTransferEncodingChunked(response);
 
-                if (keepAlive) {
-                    response.headers().set(CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+                ScrapeDeadline deadline = ScrapeDeadline.forRequest(req, config);
+
+                ZlibWrapper wrapper = COMPRESSOR.wrapper(HttpHeaders.getHeader(req, ACCEPT_ENCODING));
+                ExporterMetrics.Scrape scrape = exporterMetrics.startScrape(responseFormat, wrapper);
+                byteCounter(ctx).take();
+
+                if (scrapeCache != null) {
+                    sendCached(ctx, wrapper, responseFormat, keepAlive, deadline, scrape);
+                    return;
                 }
 
-                ctx.write(response);
+                sendStreamed(ctx, responseFormat, keepAlive, deadline, scrape);
+            }
+        }
+
+        private void sendStreamed(ChannelHandlerContext ctx, ResponseFormat responseFormat, boolean keepAlive, ScrapeDeadline deadline,
+                                  ExporterMetrics.Scrape scrape) {
+            // ChunkedWriteHandler closes the input when the client disconnects, which stops the collection
+            ScrapeInput input = new ScrapeInput(ctx,
+                    collectionExecutor != null ? collectionExecutor : ctx.executor(),
+                    deadline.containers(metrics.snapshot()), responseFormat,
+                    (container, out) -> writeContainer(responseFormat, container, out, deadline, scrape.sampled),
+                    config);
+            try {
+                input.start();
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug("Metrics collection rejected, too many pending scrapes");
+                sendError(ctx, SERVICE_UNAVAILABLE);
+                return;
+            }
+
+            HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+            HttpHeaders.setHeader(response, CONTENT_TYPE, responseFormat.contentType());
+            HttpHeaders.setDateHeader(response, DATE, new Date());
+            HttpHeaders.setTransferEncodingChunked(response);
+
+            if (keepAlive) {
+                response.headers().set(CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+            }
+
+            ctx.write(response);
+
+            LOGGER.debug("Sending response as {}", responseFormat.contentType());
+
+            ctx.writeAndFlush(input).addListener((ChannelFutureListener) future -> {
+                if (!future.isSuccess()) {
+                    // The status line has already been sent, so the only way to signal the
+                    // failure is to close the connection before the last chunk.
+                    LOGGER.info("Error during response processing", future.cause());
+                    future.channel().close();
+                    return;
+                }
+                scrape.complete(byteCounter(ctx).take());
+                if (!keepAlive) {
+                    future.channel().close();
+                }
+            });
+        }
 
-                LOGGER.debug("Sending response as {}", responseFormat.contentType());
+        private void sendCached(ChannelHandlerContext ctx, ZlibWrapper wrapper, ResponseFormat responseFormat, boolean keepAlive, ScrapeDeadline deadline,
+                                ExporterMetrics.Scrape scrape) {
+            String contentEncoding = wrapper == ZlibWrapper.GZIP ? HttpHeaders.Values.GZIP
+                    : wrapper == ZlibWrapper.ZLIB ? HttpHeaders.Values.DEFLATE
+                    : HttpHeaders.Values.IDENTITY;
 
-                try {
-                    sendMetrics(responseFormat, new OutputStream() {
+            // the deadline of the scrape that starts the collection applies, an incomplete response
+            // is not cached
+            ScrapeCache.Waiter waiter = scrapeCache.get(responseFormat.contentType() + '|' + contentEncoding,
+                    new ScrapeCache.Load() {
                         @Override
-                        public void write(byte[] b, int off, int len) throws IOException {
-                            ctx.write(new DefaultHttpContent(Unpooled.wrappedBuffer(b, off, len)));
+                        public byte[] collect() throws IOException {
+                            return collectMetrics(responseFormat, wrapper, deadline, scrape.sampled);
                         }
 
                         @Override
-                        public void write(int b) throws IOException {
-                            throw new UnsupportedOperationException();
+                        public boolean complete() {
+                            return deadline.dropped() == 0;
                         }
-                    });
-                } catch (Throwable e) {
-                    LOGGER.info("Error during response processing", e);
-                    sendError(ctx, INTERNAL_SERVER_ERROR);
-                }
 
-                ChannelFuture lastContentFuture = ctx.write(LastHttpContent.EMPTY_LAST_CONTENT);
-                if (!keepAlive) {
-                    lastContentFuture.addListener(ChannelFutureListener.CLOSE);
-                }
+                        @Override
+                        public void cancel() {
+                            deadline.cancel();
+                        }
+                    },
+                    collectionExecutor != null ? collectionExecutor : Runnable::run);
+
+            // stop the collection, if all clients waiting for it disconnect
+            ChannelFuture closeFuture = ctx.channel().closeFuture();
+            ChannelFutureListener abandon = f -> waiter.abandon();
+            closeFuture.addListener(abandon);
+
+            waiter.future
+                    .whenComplete((bytes, e) -> {
+                        closeFuture.removeListener(abandon);
+                        if (e instanceof RejectedExecutionException) {
+                            LOGGER.debug("Metrics collection rejected, too many pending scrapes");
+                            sendError(ctx, SERVICE_UNAVAILABLE);
+                            return;
+                        }
+                        if (e != null) {
+                            LOGGER.info("Error during response processing", e);
+                            sendError(ctx, INTERNAL_SERVER_ERROR);
+                            return;
+                        }
 
-                ctx.flush();
-            }
+                        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK, Unpooled.wrappedBuffer(bytes));
+                        HttpHeaders.setHeader(response, CONTENT_TYPE, responseFormat.contentType());
+                        HttpHeaders.setHeader(response, CONTENT_ENCODING, contentEncoding);
+                        HttpHeaders.setDateHeader(response, DATE, new Date());
+                        HttpHeaders.setContentLength(response, bytes.length);
+
+                        if (keepAlive) {
+                            response.headers().set(CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+                        }
+
+                        LOGGER.debug("Sending cached response as {} with content encoding {}", responseFormat.contentType(), contentEncoding);
+
+                        ChannelFuture future = ctx.writeAndFlush(response);
+                        future.addListener((ChannelFutureListener) f -> {
+                            if (f.isSuccess())
+                                scrape.complete(byteCounter(ctx).take());
+                        });
+                        if (!keepAlive) {
+                            future.addListener(ChannelFutureListener.CLOSE);
+                        }
+                    });
+        }
+
+        private ExporterMetrics.ByteCounter byteCounter(ChannelHandlerContext ctx) {
+            return ctx.pipeline().get(ExporterMetrics.ByteCounter.class);
         }
 
         private void sendError(ChannelHandlerContext ctx, HttpResponseStatus status) {
@@ -373,21 +625,18 @@ public final class PrometheusMetricsExporter {
         private final Pattern VALIDATION_PATTERN = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
 
         private synchronized void unregisterMetric(String codahaleName) {
-            for (ExporterConfig.Exclusion exclusion : config.exclusions) {
-                if (exclusion.regex.matcher(codahaleName).matches()) {
-                    return;
-                }
+            if (mappings.isExcluded(codahaleName)) {
+                return;
             }
 
-            for (ExporterConfig.Mapping mapping : config.mappings) {
-                Matcher matcher = mapping.regex.matcher(codahaleName);
-                if (matcher.matches()) {
-                    String name = matcher.replaceAll(mapping.name);
+            if (gaugeSampler != null)
+                gaugeSampler.remove(codahaleName);
 
-                    MetricsContainer container = metrics.get(name);
-                    if (container.removeMetric(codahaleName)) {
-                        return;
-                    }
+            MetricMappings.Match match = match(codahaleName);
+            if (match != null) {
+                MetricsContainer container = metrics.get(match.name());
+                if (container != null && container.removeMetric(codahaleName)) {
+                    return;
                 }
             }
 
@@ -396,10 +645,8 @@ public final class PrometheusMetricsExporter {
         }
 
         private synchronized void registerMetric(String codahaleName, Metric metric) {
-            for (ExporterConfig.Exclusion exclusion : config.exclusions) {
-                if (exclusion.regex.matcher(codahaleName).matches()) {
-                    return;
-                }
+            if (mappings.isExcluded(codahaleName)) {
+                return;
             }
 
             Prometheus.MetricType type;
@@ -413,38 +660,35 @@ public final class PrometheusMetricsExporter {
                 throw new UnsupportedOperationException("Unknown metric of type " + metric.getClass().getName());
             }
 
-            for (ExporterConfig.Mapping mapping : config.mappings) {
-                Matcher matcher = mapping.regex.matcher(codahaleName);
-                if (matcher.matches()) {
-                    LOGGER.debug("{} matches {}", codahaleName, mapping.pattern);
-                    String name = matcher.replaceAll(mapping.name);
-
-                    List<String[]> labels = new ArrayList<>();
-                    for (ExporterConfig.Label label : mapping.labels) {
-                        labels.add(new String[]{
-                                matcher.replaceAll(label.label),
-                                matcher.replaceAll(label.value)
-                        });
-                    }
+            MetricMappings.Match match = match(codahaleName);
+            if (match != null) {
+                ExporterConfig.Mapping mapping = match.mapping();
+                LOGGER.debug("{} matches {}", codahaleName, mapping.pattern);
+                String name = match.name();
 
-                    if (!VALIDATION_PATTERN.matcher(name).matches())
-                        LOGGER.warn("Invalid Prometheus metric name '{}' (from '{}')", name, codahaleName);
-                    else {
-                        MetricsContainer container = metrics.get(name);
-                        if (container == null) {
-                            addMetricsContainer(container = new MetricsContainer(name, "from codahale", type));
-                        } else {
-                            if (container.type != type) {
-                                LOGGER.error("Existing metrics with name '{}' are of type '{}' but metric to be registered '{}' is of type '{}'",
-                                        container.name, container.type, codahaleName, type);
-                                return;
-                            }
+                if (!VALIDATION_PATTERN.matcher(name).matches())
+                    LOGGER.warn("Invalid Prometheus metric name '{}' (from '{}')", name, codahaleName);
+                else {
+                    MetricsContainer container = metrics.get(name);
+                    if (container == null) {
+                        addMetricsContainer(container = new MetricsContainer(name, "from codahale", type));
+                    } else {
+                        if (container.type != type) {
+                            LOGGER.error("Existing metrics with name '{}' are of type '{}' but metric to be registered '{}' is of type '{}'",
+                                    container.name, container.type, codahaleName, type);
+                            return;
                         }
-                        container.addMetric(codahaleName, metric, labels.toArray(new String[labels.size()][]));
                     }
-
-                    return;
+                    if (container.containsMetric(codahaleName)) {
+                        LOGGER.warn("Metric '{}' is already registered in '{}', ignoring it", codahaleName, name);
+                        return;
+                    }
+                    if (mapping.refreshIntervalMillis > 0L && metric instanceof Gauge)
+                        metric = gaugeSampler.add(codahaleName, (Gauge<?>) metric, mapping.refreshIntervalMillis, mapping.exportTimestamp);
+                    container.addMetric(codahaleName, metric, match.labels());
                 }
+
+                return;
             }
 
             LOGGER.info("No matching metric mapping for '{}'", codahaleName);
@@ -454,6 +698,38 @@ public final class PrometheusMetricsExporter {
             addMetricsContainer(container);
         }
 
+        private MetricMappings.Match match(String codahaleName) {
+            long start = System.nanoTime();
+            MetricMappings.Match match = mappings.match(codahaleName);
+            exporterMetrics.mapped(System.nanoTime() - start);
+            return match;
+        }
+
+        private void map(String codahaleName, Metric metric) {
+            long start = System.nanoTime();
+            if (metric != null) {
+                registerMetric(codahaleName, metric);
+                exporterMetrics.registered(System.nanoTime() - start);
+            } else {
+                unregisterMetric(codahaleName);
+                exporterMetrics.unregistered(System.nanoTime() - start);
+            }
+        }
+
+        private void added(String codahaleName, Metric metric) {
+            if (registrationQueue != null)
+                registrationQueue.added(codahaleName, metric);
+            else
+                map(codahaleName, metric);
+        }
+
+        private void removed(String codahaleName) {
+            if (registrationQueue != null)
+                registrationQueue.removed(codahaleName);
+            else
+                map(codahaleName, null);
+        }
+
         private String convert(String s) {
             StringBuilder sb = new StringBuilder(s.length());
             for (int i = 0; i < s.length(); i++) {
@@ -476,52 +752,52 @@ public final class PrometheusMetricsExporter {
 
         @Override
         public void onGaugeAdded(String s, Gauge<?> gauge) {
-            registerMetric(s, gauge);
+            added(s, gauge);
         }
 
         @Override
         public void onGaugeRemoved(String s) {
-            unregisterMetric(s);
+            removed(s);
         }
 
         @Override
         public void onCounterAdded(String s, Counter counter) {
-            registerMetric(s, counter);
+            added(s, counter);
         }
 
         @Override
         public void onCounterRemoved(String s) {
-            unregisterMetric(s);
+            removed(s);
         }
 
         @Override
         public void onHistogramAdded(String s, Histogram histogram) {
-            registerMetric(s, histogram);
+            added(s, histogram);
         }
 
         @Override
         public void onHistogramRemoved(String s) {
-            unregisterMetric(s);
+            removed(s);
         }
 
         @Override
         public void onMeterAdded(String s, Meter meter) {
-            registerMetric(s, meter);
+            added(s, meter);
         }
 
         @Override
         public void onMeterRemoved(String s) {
-            unregisterMetric(s);
+            removed(s);
         }
 
         @Override
         public void onTimerAdded(String s, Timer timer) {
-            registerMetric(s, timer);
+            added(s, timer);
         }
 
         @Override
         public void onTimerRemoved(String s) {
-            unregisterMetric(s);
+            removed(s);
         }
     }
 }
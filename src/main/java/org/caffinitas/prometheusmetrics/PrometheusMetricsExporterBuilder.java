@@ -18,6 +18,7 @@
 package org.caffinitas.prometheusmetrics;
 
 import com.codahale.metrics.MetricRegistry;
+import io.netty.channel.EventLoopGroup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.yaml.snakeyaml.TypeDescription;
@@ -51,6 +52,8 @@ public final class PrometheusMetricsExporterBuilder {
     private String bindAddress;
     private Integer httpPort;
     private Boolean includeJvm;
+    private Integer scrapeCacheMillis;
+    private EventLoopGroup eventLoopGroup;
 
     public static PrometheusMetricsExporterBuilder newBuilder() {
         return new PrometheusMetricsExporterBuilder();
@@ -135,6 +138,20 @@ public final class PrometheusMetricsExporterBuilder {
         return this;
     }
 
+    public PrometheusMetricsExporterBuilder scrapeCacheMillis(int scrapeCacheMillis) {
+        this.scrapeCacheMillis = scrapeCacheMillis;
+        return this;
+    }
+
+    /**
+     * Serve HTTP requests using an existing epoll or NIO event loop group, for example the one of the
+     * application, instead of a new one. The group is not shut down when the exporter stops.
+     */
+    public PrometheusMetricsExporterBuilder eventLoopGroup(EventLoopGroup eventLoopGroup) {
+        this.eventLoopGroup = eventLoopGroup;
+        return this;
+    }
+
     public PrometheusMetricsExporterBuilder config(URL configUrl) {
         this.configUrl = configUrl;
         return this;
@@ -145,23 +162,7 @@ public final class PrometheusMetricsExporterBuilder {
         ExporterConfig config;
         if (configUrl != null) {
             LOGGER.info("Loading configuration from URL {}", configUrl);
-            try (InputStream is = configUrl.openStream())
-            {
-                Constructor constructor = new Constructor(ExporterConfig.class);
-
-                TypeDescription desc = new TypeDescription(ExporterConfig.class);
-                desc.putListPropertyType("mappings", ExporterConfig.Mapping.class);
-                constructor.addTypeDescription(desc);
-
-                desc = new TypeDescription(ExporterConfig.Mapping.class);
-                desc.putListPropertyType("labels", ExporterConfig.Label.class);
-                constructor.addTypeDescription(desc);
-
-                Yaml yaml = new Yaml(constructor);
-                config = yaml.loadAs(is, ExporterConfig.class);
-            } catch (IOException e) {
-                throw new RuntimeException("Failed to load configuration " + configUrl, e);
-            }
+            config = loadConfig(configUrl);
         }
         else {
             config = new ExporterConfig();
@@ -178,12 +179,36 @@ public final class PrometheusMetricsExporterBuilder {
         if (includeJvm != null) {
             config.includeJvm = includeJvm;
         }
+        if (scrapeCacheMillis != null) {
+            config.scrapeCacheMillis = scrapeCacheMillis;
+        }
 
         config.bindAddress = fromSystemProperties("bindAddress", config.bindAddress);
         config.httpPort = fromSystemProperties("httpPort", config.httpPort);
         config.ssl = fromSystemProperties("ssl", config.ssl);
         config.includeJvm = fromSystemProperties("includeJvm", config.includeJvm);
+        config.scrapeCacheMillis = fromSystemProperties("scrapeCacheMillis", config.scrapeCacheMillis);
+
+        return new PrometheusMetricsExporter(registry, config, eventLoopGroup);
+    }
 
-        return new PrometheusMetricsExporter(registry, config);
+    static ExporterConfig loadConfig(URL configUrl) {
+        try (InputStream is = configUrl.openStream())
+        {
+            Constructor constructor = new Constructor(ExporterConfig.class);
+
+            TypeDescription desc = new TypeDescription(ExporterConfig.class);
+            desc.putListPropertyType("mappings", ExporterConfig.Mapping.class);
+            constructor.addTypeDescription(desc);
+
+            desc = new TypeDescription(ExporterConfig.Mapping.class);
+            desc.putListPropertyType("labels", ExporterConfig.Label.class);
+            constructor.addTypeDescription(desc);
+
+            Yaml yaml = new Yaml(constructor);
+            return yaml.loadAs(is, ExporterConfig.class);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to load configuration " + configUrl, e);
+        }
     }
 }
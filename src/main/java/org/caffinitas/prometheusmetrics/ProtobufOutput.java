@@ -0,0 +1,289 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import io.prometheus.client.Prometheus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming encoder for delimited {@code io.prometheus.client.MetricFamily} messages.
+ * <p>
+ * The sample values of a family are first read into reusable buffers, so that the length prefix of
+ * the family can be computed from the pre-serialized family header and label pairs and the
+ * (mostly fixed-size) values without materializing any protobuf message objects.
+ * The bytes written are identical to those of {@code MetricFamily.writeDelimitedTo}.
+ * </p>
+ */
+final class ProtobufOutput {
+    private static final double[] QUANTILE_VALUES = {.5d, .75d, .95d, .98d, .99d, .999d};
+    static final int QUANTILES = QUANTILE_VALUES.length;
+
+    // MetricFamily
+    private static final int FAMILY_NAME = tag(Prometheus.MetricFamily.NAME_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int FAMILY_HELP = tag(Prometheus.MetricFamily.HELP_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int FAMILY_TYPE = tag(Prometheus.MetricFamily.TYPE_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+    private static final int FAMILY_METRIC = tag(Prometheus.MetricFamily.METRIC_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    // Metric
+    private static final int METRIC_LABEL = tag(Prometheus.Metric.LABEL_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int METRIC_GAUGE = tag(Prometheus.Metric.GAUGE_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int METRIC_COUNTER = tag(Prometheus.Metric.COUNTER_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int METRIC_SUMMARY = tag(Prometheus.Metric.SUMMARY_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int METRIC_TIMESTAMP = tag(Prometheus.Metric.TIMESTAMP_MS_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+    // LabelPair
+    private static final int LABEL_NAME = tag(Prometheus.LabelPair.NAME_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int LABEL_VALUE = tag(Prometheus.LabelPair.VALUE_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    // Gauge + Counter
+    private static final int VALUE = tag(Prometheus.Gauge.VALUE_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED64);
+    // Summary
+    private static final int SUMMARY_COUNT = tag(Prometheus.Summary.SAMPLE_COUNT_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+    private static final int SUMMARY_SUM = tag(Prometheus.Summary.SAMPLE_SUM_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED64);
+    private static final int SUMMARY_QUANTILE = tag(Prometheus.Summary.QUANTILE_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    // Quantile
+    private static final int QUANTILE_QUANTILE = tag(Prometheus.Quantile.QUANTILE_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED64);
+    private static final int QUANTILE_VALUE = tag(Prometheus.Quantile.VALUE_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED64);
+
+    /** Size of a {@code Gauge} or {@code Counter} message. */
+    private static final int VALUE_SIZE = 1 + 8;
+    /** Size of a {@code Quantile} message. */
+    private static final int QUANTILE_SIZE = 1 + 8 + 1 + 8;
+    /** Size of a {@code Summary} message without the {@code sample_count} varint. */
+    private static final int SUMMARY_FIXED_SIZE = 1 + 1 + 8 + QUANTILES * (1 + 1 + QUANTILE_SIZE);
+
+    private final CodedOutputStream out;
+
+    private MetricInfo[] series = new MetricInfo[64];
+    private double[] values = new double[64];
+    private long[] counts = new long[64];
+    private long[] timestamps = new long[64];
+    private int count;
+    private int stride;
+
+    ProtobufOutput(OutputStream output) {
+        this.out = CodedOutputStream.newInstance(output);
+    }
+
+    /**
+     * Starts collecting the values of a family with {@code stride} values per series.
+     */
+    void begin(int stride) {
+        this.count = 0;
+        this.stride = stride;
+    }
+
+    /**
+     * Adds a series and returns the offset of its values in {@link #values()}.
+     */
+    int add(MetricInfo metric, long count) {
+        return add(metric, count, 0L);
+    }
+
+    /**
+     * Adds a series with an explicit timestamp, if {@code timestampMillis} is not {@code 0},
+     * and returns the offset of its values in {@link #values()}.
+     */
+    int add(MetricInfo metric, long count, long timestampMillis) {
+        int i = this.count;
+        if (i == series.length) {
+            series = Arrays.copyOf(series, i * 2);
+            counts = Arrays.copyOf(counts, i * 2);
+            timestamps = Arrays.copyOf(timestamps, i * 2);
+        }
+        if ((i + 1) * stride > values.length)
+            values = Arrays.copyOf(values, Math.max(values.length * 2, (i + 1) * stride));
+        series[i] = metric;
+        counts[i] = count;
+        timestamps[i] = timestampMillis;
+        this.count = i + 1;
+        return i * stride;
+    }
+
+    double[] values() {
+        return values;
+    }
+
+    /**
+     * Writes the collected series as one length-delimited {@code MetricFamily}.
+     */
+    void writeFamily(MetricsContainer metrics) throws IOException {
+        int n = count;
+        if (n == 0)
+            return;
+
+        Prometheus.MetricType type = metrics.type;
+        int size = metrics.protobufHeader.length;
+        for (int i = 0; i < n; i++) {
+            int metricSize = metricSize(type, i);
+            size += 1 + CodedOutputStream.computeRawVarint32Size(metricSize) + metricSize;
+        }
+
+        out.writeRawVarint32(size);
+        out.writeRawBytes(metrics.protobufHeader);
+        for (int i = 0; i < n; i++) {
+            MetricInfo metric = series[i];
+            out.writeRawVarint32(FAMILY_METRIC);
+            out.writeRawVarint32(metricSize(type, i));
+            out.writeRawBytes(metric.labels.protobuf);
+            int off = i * stride;
+            switch (type) {
+                case GAUGE:
+                    writeValue(METRIC_GAUGE, values[off]);
+                    break;
+                case COUNTER:
+                    writeValue(METRIC_COUNTER, values[off]);
+                    break;
+                case SUMMARY:
+                    out.writeRawVarint32(METRIC_SUMMARY);
+                    out.writeRawVarint32(summarySize(counts[i]));
+                    out.writeRawVarint32(SUMMARY_COUNT);
+                    out.writeUInt64NoTag(counts[i]);
+                    out.writeRawVarint32(SUMMARY_SUM);
+                    out.writeDoubleNoTag(values[off + QUANTILES]);
+                    for (int q = 0; q < QUANTILES; q++) {
+                        out.writeRawVarint32(SUMMARY_QUANTILE);
+                        out.writeRawVarint32(QUANTILE_SIZE);
+                        out.writeRawVarint32(QUANTILE_QUANTILE);
+                        out.writeDoubleNoTag(QUANTILE_VALUES[q]);
+                        out.writeRawVarint32(QUANTILE_VALUE);
+                        out.writeDoubleNoTag(values[off + q]);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported metric type " + type);
+            }
+            if (timestamps[i] != 0L) {
+                out.writeRawVarint32(METRIC_TIMESTAMP);
+                out.writeInt64NoTag(timestamps[i]);
+            }
+            series[i] = null;
+        }
+        count = 0;
+    }
+
+    /**
+     * Writes delimited families encoded by another instance.
+     */
+    void writeEncoded(byte[] encoded) throws IOException {
+        out.writeRawBytes(encoded);
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    private void writeValue(int field, double value) throws IOException {
+        out.writeRawVarint32(field);
+        out.writeRawVarint32(VALUE_SIZE);
+        out.writeRawVarint32(VALUE);
+        out.writeDoubleNoTag(value);
+    }
+
+    private int metricSize(Prometheus.MetricType type, int i) {
+        int size = series[i].labels.protobuf.length;
+        if (timestamps[i] != 0L)
+            size += 1 + CodedOutputStream.computeInt64SizeNoTag(timestamps[i]);
+        if (type == Prometheus.MetricType.SUMMARY) {
+            int summarySize = summarySize(counts[i]);
+            return size + 1 + CodedOutputStream.computeRawVarint32Size(summarySize) + summarySize;
+        }
+        return size + 1 + 1 + VALUE_SIZE;
+    }
+
+    private static int summarySize(long count) {
+        return SUMMARY_FIXED_SIZE + CodedOutputStream.computeUInt64SizeNoTag(count);
+    }
+
+    /**
+     * Serializes the {@code name}, {@code help} and {@code type} fields of a {@code MetricFamily}.
+     */
+    static byte[] familyHeader(String name, String help, Prometheus.MetricType type) {
+        byte[] nameBytes = utf8(name);
+        byte[] helpBytes = utf8(help);
+        byte[] header = new byte[
+                fieldSize(nameBytes.length) + fieldSize(helpBytes.length) +
+                1 + CodedOutputStream.computeEnumSizeNoTag(type.getNumber())];
+        CodedOutputStream out = CodedOutputStream.newInstance(header);
+        try {
+            writeField(out, FAMILY_NAME, nameBytes);
+            writeField(out, FAMILY_HELP, helpBytes);
+            out.writeRawVarint32(FAMILY_TYPE);
+            out.writeEnumNoTag(type.getNumber());
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return header;
+    }
+
+    /**
+     * Serializes the {@code label} fields of a {@code Metric}.
+     */
+    static byte[] labels(String[][] labels) {
+        byte[][] utf8 = new byte[labels.length * 2][];
+        int size = 0;
+        for (int i = 0; i < labels.length; i++) {
+            utf8[i * 2] = utf8(labels[i][0]);
+            utf8[i * 2 + 1] = utf8(labels[i][1]);
+            size += fieldSize(labelPairSize(utf8[i * 2], utf8[i * 2 + 1]));
+        }
+
+        byte[] bytes = new byte[size];
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        try {
+            for (int i = 0; i < labels.length; i++) {
+                byte[] name = utf8[i * 2];
+                byte[] value = utf8[i * 2 + 1];
+                out.writeRawVarint32(METRIC_LABEL);
+                out.writeRawVarint32(labelPairSize(name, value));
+                writeField(out, LABEL_NAME, name);
+                writeField(out, LABEL_VALUE, value);
+            }
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bytes;
+    }
+
+    private static int labelPairSize(byte[] name, byte[] value) {
+        return fieldSize(name.length) + fieldSize(value.length);
+    }
+
+    private static int fieldSize(int length) {
+        return 1 + CodedOutputStream.computeRawVarint32Size(length) + length;
+    }
+
+    private static void writeField(CodedOutputStream out, int tag, byte[] bytes) throws IOException {
+        out.writeRawVarint32(tag);
+        out.writeRawVarint32(bytes.length);
+        out.writeRawBytes(bytes);
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int tag(int field, int wireType) {
+        return (field << 3) | wireType;
+    }
+}
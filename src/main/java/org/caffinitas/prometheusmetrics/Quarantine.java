@@ -0,0 +1,273 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import io.prometheus.client.Prometheus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Circuit breaker for the collection of metric families.
+ * <p>
+ * A family whose collection fails or takes longer than {@code quarantineBudgetMillis} becomes suspect.
+ * Suspect families are encoded into a separate buffer first, which keeps the last good encoding and
+ * prevents partially written families. After {@code quarantineThreshold} consecutive slow or failed
+ * collections, a family is quarantined: scrapes serve its last good encoding (or skip it) without
+ * collecting it. After {@code quarantineBackoffMillis} one scrape probes the family again. A good probe
+ * ends the quarantine, a bad one doubles the backoff up to {@code quarantineMaxBackoffMillis}.
+ * </p>
+ * <p>
+ * Quarantined families are exported in {@code PrometheusExporter_QuarantinedFamilies} with the
+ * {@code family} and {@code reason} labels, the number of quarantines in {@code PrometheusExporter_Quarantines}.
+ * </p>
+ * <p>
+ * The quarantine is disabled by default, it is enabled by setting {@code quarantineBudgetMillis} to a positive value.
+ * </p>
+ */
+final class Quarantine {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Quarantine.class);
+
+    private final long budgetNanos;
+    private final int threshold;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+    private final boolean serveLastGood;
+    private final Supplier<List<MetricsContainer>> containers;
+
+    private final LongAdder quarantines = new LongAdder();
+
+    Quarantine(ExporterConfig config, Supplier<List<MetricsContainer>> containers) {
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(config.quarantineBudgetMillis);
+        this.threshold = Math.max(1, config.quarantineThreshold);
+        this.backoffMillis = Math.max(1, config.quarantineBackoffMillis);
+        this.maxBackoffMillis = Math.max(backoffMillis, config.quarantineMaxBackoffMillis);
+        this.serveLastGood = config.quarantineServeLastGood;
+        this.containers = containers;
+    }
+
+    void registerMetrics(Consumer<MetricsContainer> registration) {
+        registration.accept(new MetricsContainer("PrometheusExporter_Quarantines", "metric families put into quarantine", Prometheus.MetricType.COUNTER)
+                .addMetric("PrometheusExporter_Quarantines", (CountingMetric) quarantines::sum));
+        registration.accept(new QuarantinedFamilies());
+    }
+
+    /**
+     * Writes {@code container} into {@code out}, unless it is quarantined.
+     *
+     * @param sampled whether to record the collection time in {@link MetricsContainer#sampledCollectNanos}
+     */
+    @SuppressWarnings("unchecked")
+    void write(ResponseFormat responseFormat, MetricsContainer container, Object out, boolean sampled) {
+        State state = container.quarantine;
+        if (state == null) {
+            long start = System.nanoTime();
+            try {
+                responseFormat.writeMetric(container, out);
+            } catch (Exception ex) {
+                LOGGER.error("Not including metrics for '" + container.name + "' due to failure constructing these metrics", ex);
+                strike(container, suspect(container), "failed");
+                return;
+            }
+            long nanos = System.nanoTime() - start;
+            if (sampled)
+                container.sampledCollectNanos = nanos;
+            if (nanos > budgetNanos)
+                strike(container, suspect(container), "slow");
+            return;
+        }
+
+        int format = responseFormat == ResponseFormat.PROTOBUF ? 1 : 0;
+        if (!state.tryCollect()) {
+            writeLastGood(responseFormat, state, format, out);
+            return;
+        }
+
+        long start = System.nanoTime();
+        byte[] encoded;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+            Object output = responseFormat.createOutput(bytes);
+            responseFormat.writeMetric(container, output);
+            responseFormat.finish(output);
+            encoded = bytes.toByteArray();
+        } catch (Exception ex) {
+            LOGGER.debug("Collection of metric family '{}' failed again", container.name, ex);
+            strike(container, state, "failed");
+            writeLastGood(responseFormat, state, format, out);
+            return;
+        } catch (Error e) {
+            // end the probe, otherwise the family is never probed again
+            strike(container, state, "failed");
+            throw e;
+        }
+        long nanos = System.nanoTime() - start;
+        if (sampled)
+            container.sampledCollectNanos = nanos;
+        state.lastGood.set(format, encoded);
+
+        // end the probe before writing the response, which may fail
+        if (nanos > budgetNanos)
+            strike(container, state, "slow");
+        else if (state.recovered(container.name))
+            container.quarantine = null;
+
+        try {
+            responseFormat.writeEncoded(encoded, out);
+        } catch (Exception ex) {
+            LOGGER.error("Not including metrics for '" + container.name + "' due to failure writing these metrics", ex);
+        }
+    }
+
+    private void writeLastGood(ResponseFormat responseFormat, State state, int format, Object out) {
+        byte[] encoded = state.lastGood.get(format);
+        if (!serveLastGood || encoded == null)
+            return;
+        try {
+            responseFormat.writeEncoded(encoded, out);
+        } catch (Exception ex) {
+            LOGGER.debug("Failed to write last good encoding", ex);
+        }
+    }
+
+    private static State suspect(MetricsContainer container) {
+        synchronized (container) {
+            State state = container.quarantine;
+            if (state == null)
+                container.quarantine = state = new State();
+            return state;
+        }
+    }
+
+    private void strike(MetricsContainer container, State state, String reason) {
+        long quarantinedMillis = state.strike(reason, threshold, backoffMillis, maxBackoffMillis);
+        if (quarantinedMillis > 0L) {
+            quarantines.increment();
+            LOGGER.warn("Quarantining metric family '{}' for {} ms after {} {} collections",
+                    container.name, quarantinedMillis, state.strikes, reason);
+        }
+    }
+
+    /**
+     * Quarantine state of a suspect metric family.
+     */
+    static final class State {
+        /**
+         * Last good encoding per response format, text and protobuf.
+         */
+        final AtomicReferenceArray<byte[]> lastGood = new AtomicReferenceArray<>(2);
+
+        // all guarded by this
+        private int strikes;
+        private String reason;
+        private long backoffMillis;
+        private long until;
+        private boolean probing;
+
+        /**
+         * Whether the family shall be collected - it is not quarantined or this scrape probes it.
+         */
+        synchronized boolean tryCollect() {
+            if (reason == null)
+                return true;
+            if (probing || System.nanoTime() - until < 0L)
+                return false;
+            probing = true;
+            return true;
+        }
+
+        /**
+         * Records a slow or failed collection.
+         *
+         * @return the quarantine duration in milliseconds, if the family has been quarantined, or {@code 0}
+         */
+        synchronized long strike(String reason, int threshold, long initialBackoffMillis, long maxBackoffMillis) {
+            strikes++;
+            if (probing) {
+                probing = false;
+                backoffMillis = Math.min(backoffMillis * 2L, maxBackoffMillis);
+            } else if (this.reason != null || strikes < threshold) {
+                return 0L;
+            } else {
+                backoffMillis = initialBackoffMillis;
+            }
+            this.reason = reason;
+            until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis);
+            return backoffMillis;
+        }
+
+        /**
+         * Records a good collection.
+         *
+         * @return whether the family is healthy again
+         */
+        synchronized boolean recovered(String family) {
+            if (reason != null && !probing)
+                // another scrape's collection, started before the quarantine
+                return false;
+            if (probing)
+                LOGGER.info("Metric family '{}' recovered, ending its quarantine", family);
+            probing = false;
+            reason = null;
+            strikes = 0;
+            return true;
+        }
+
+        synchronized String reason() {
+            return reason;
+        }
+    }
+
+    /**
+     * One series with the value {@code 1} per quarantined family.
+     */
+    private final class QuarantinedFamilies extends MetricsContainer {
+        QuarantinedFamilies() {
+            super("PrometheusExporter_QuarantinedFamilies", "metric families not collected because they were too slow or failed", Prometheus.MetricType.GAUGE);
+        }
+
+        @Override
+        List<MetricInfo> getMetrics() {
+            List<MetricInfo> result = null;
+            for (MetricsContainer container : containers.get()) {
+                State state = container.quarantine;
+                String reason = state != null ? state.reason() : null;
+                if (reason == null)
+                    continue;
+                if (result == null)
+                    result = new ArrayList<>();
+                result.add(new MetricInfo<>(container.name, (LongValueGauge) () -> 1L, "family", container.name, "reason", reason));
+            }
+            return result != null ? Collections.unmodifiableList(result) : Collections.emptyList();
+        }
+
+        @Override
+        int size() {
+            return getMetrics().size();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The series of a metrics container together with the values of one readout of their source, for
+ * example of the thread MXBean. The value of the series at index {@code i} is {@code values[i]}.
+ * <p>
+ * A container returns a new readout per scrape, but shares the series between its readouts. So
+ * concurrent scrapes each encode the values of their own readout, while a readout only allocates
+ * its {@code values}.
+ * </p>
+ */
+final class Readout extends AbstractList<MetricInfo> implements RandomAccess {
+    /**
+     * Metric of series with a {@code long} value, read via {@link #longValue(int)}.
+     */
+    static final LongValue LONG = () -> {
+        throw new UnsupportedOperationException("value is bound to a readout");
+    };
+    /**
+     * Metric of series with a {@code double} value, read via {@link #doubleValue(int)}.
+     */
+    static final DoubleValue DOUBLE = () -> {
+        throw new UnsupportedOperationException("value is bound to a readout");
+    };
+
+    /**
+     * Gauge whose value the encoders read via {@link #longValue(int)}.
+     */
+    interface LongValue extends LongValueGauge {
+    }
+
+    /**
+     * Gauge whose value the encoders read via {@link #doubleValue(int)}.
+     */
+    interface DoubleValue extends DoubleValueGauge {
+    }
+
+    final List<MetricInfo> series;
+    private final long[] values;
+
+    /**
+     * @param values the values of the series, {@link Double#doubleToRawLongBits(double)} for
+     *               series with a {@code double} value
+     */
+    Readout(List<MetricInfo> series, long[] values) {
+        this.series = series;
+        this.values = values;
+    }
+
+    long longValue(int index) {
+        return values[index];
+    }
+
+    double doubleValue(int index) {
+        return Double.longBitsToDouble(values[index]);
+    }
+
+    @Override
+    public MetricInfo get(int index) {
+        return series.get(index);
+    }
+
+    @Override
+    public int size() {
+        return series.size();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import io.prometheus.client.Prometheus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Moves the mapping of registered and removed codahale metrics off the application threads.
+ * Listener events are put on a lock-free queue and a single background thread maps them in batches,
+ * in the order in which they were queued.
+ */
+final class RegistrationQueue {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RegistrationQueue.class);
+
+    private static final int MAX_BATCH = 4096;
+
+    private final Queue<Event> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final BiConsumer<String, Metric> handler;
+    private final Consumer<Runnable> batcher;
+    private final Thread thread;
+
+    private volatile boolean stopped;
+    /**
+     * Oldest event of the batch that is being mapped, if any.
+     */
+    private volatile Event inFlight;
+
+    /**
+     * @param handler maps a registered metric or, if the metric is {@code null}, a removed metric
+     * @param batcher runs a batch of {@code handler} calls, see {@link PrometheusMetricsExporter#batchRegistrations(Runnable)}
+     */
+    RegistrationQueue(BiConsumer<String, Metric> handler, Consumer<Runnable> batcher) {
+        this.handler = handler;
+        this.batcher = batcher;
+        this.thread = new Thread(this::run, "prometheus-metrics-registration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void registerMetrics(Consumer<MetricsContainer> registration) {
+        registration.accept(new MetricsContainer("PrometheusExporter_RegistrationQueue_Pending", "metric registrations waiting to be mapped", Prometheus.MetricType.GAUGE)
+                .addMetric("PrometheusExporter_RegistrationQueue_Pending", (Gauge<Integer>) pending::get));
+        registration.accept(new MetricsContainer("PrometheusExporter_RegistrationQueue_LagSeconds", "age of the oldest metric registration waiting to be mapped", Prometheus.MetricType.GAUGE)
+                .addMetric("PrometheusExporter_RegistrationQueue_LagSeconds", (Gauge<Double>) this::lagSeconds));
+    }
+
+    void added(String name, Metric metric) {
+        pending.incrementAndGet();
+        offer(new Event(name, metric));
+    }
+
+    void removed(String name) {
+        pending.incrementAndGet();
+        offer(new Event(name, null));
+    }
+
+    /**
+     * Waits until all events queued before this call have been mapped.
+     *
+     * @return {@code false}, if the timeout elapsed before or the queue has been stopped
+     */
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        if (stopped)
+            return false;
+        Barrier barrier = new Barrier();
+        offer(barrier);
+        if (stopped)
+            return false;
+        return barrier.latch.await(timeout, unit) && barrier.mapped;
+    }
+
+    void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+    }
+
+    double lagSeconds() {
+        Event oldest = inFlight;
+        if (oldest == null)
+            oldest = queue.peek();
+        return oldest != null ? (System.nanoTime() - oldest.enqueuedNanos) / 1e9d : 0d;
+    }
+
+    private void offer(Event event) {
+        queue.offer(event);
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        List<Event> batch = new ArrayList<>();
+        while (!stopped) {
+            // publish the head of the queue before taking it, so that the lag does not drop while
+            // the batch is being mapped
+            inFlight = queue.peek();
+            for (Event event; batch.size() < MAX_BATCH && (event = queue.poll()) != null; )
+                batch.add(event);
+            if (batch.isEmpty()) {
+                LockSupport.park(this);
+                continue;
+            }
+            inFlight = batch.get(0);
+
+            batcher.accept(() -> {
+                for (Event event : batch) {
+                    if (event instanceof Barrier)
+                        continue;
+                    try {
+                        handler.accept(event.name, event.metric);
+                    } catch (Exception e) {
+                        LOGGER.error("Failed to map metric '" + event.name + "'", e);
+                    }
+                }
+            });
+
+            int mapped = 0;
+            for (Event event : batch) {
+                if (event instanceof Barrier) {
+                    ((Barrier) event).mapped = true;
+                    ((Barrier) event).latch.countDown();
+                } else {
+                    mapped++;
+                }
+            }
+            pending.addAndGet(-mapped);
+            inFlight = null;
+            batch.clear();
+        }
+
+        // release waiters for events that will never be mapped
+        for (Event event; (event = queue.poll()) != null; )
+            if (event instanceof Barrier)
+                ((Barrier) event).latch.countDown();
+    }
+
+    private static class Event {
+        final String name;
+        final Metric metric;
+        final long enqueuedNanos = System.nanoTime();
+
+        Event(String name, Metric metric) {
+            this.name = name;
+            this.metric = metric;
+        }
+    }
+
+    private static final class Barrier extends Event {
+        final CountDownLatch latch = new CountDownLatch(1);
+        volatile boolean mapped;
+
+        Barrier() {
+            super(null, null);
+        }
+    }
+}
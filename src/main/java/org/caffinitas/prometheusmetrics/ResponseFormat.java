@@ -18,16 +18,14 @@
 package org.caffinitas.prometheusmetrics;
 
 import com.codahale.metrics.*;
-import com.google.protobuf.CodedOutputStream;
-import io.prometheus.client.Collector;
 import io.prometheus.client.Prometheus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public interface ResponseFormat<O> {
@@ -38,6 +36,11 @@ public interface ResponseFormat<O> {
 
     void writeMetric(MetricsContainer metrics, O writer) throws IOException;
 
+    /**
+     * Writes a family previously encoded by {@link #writeMetric(MetricsContainer, Object)} into another output.
+     */
+    void writeEncoded(byte[] encoded, O writer) throws IOException;
+
     O createOutput(OutputStream output);
 
     void finish(O output) throws IOException;
@@ -45,53 +48,88 @@ public interface ResponseFormat<O> {
     ResponseFormat TEXT = new TextFormat();
     ResponseFormat PROTOBUF = new ProtobufFormat();
 
-    final class TextFormat implements ResponseFormat<Writer> {
+    final class TextFormat implements ResponseFormat<TextOutput> {
         private static final Logger LOGGER = LoggerFactory.getLogger(TextFormat.class);
         private static final String CONTENT_TYPE_004 = "text/plain; version=0.0.4; charset=utf-8";
 
+        private static final String[] QUANTILES = {"0.5", "0.75", "0.95", "0.98", "0.99", "0.999"};
+        private static final int COUNT = QUANTILES.length;
+        private static final int SUM = COUNT + 1;
+
         @Override
         public String contentType() {
             return CONTENT_TYPE_004;
         }
 
         @Override
-        public Writer createOutput(OutputStream output) {
-            return new OutputStreamWriter(output);
+        public TextOutput createOutput(OutputStream output) {
+            return new TextOutput(output);
         }
 
         @Override
-        public void finish(Writer output) throws IOException {
+        public void finish(TextOutput output) throws IOException {
             output.flush();
         }
 
         @Override
-        public void writeMetric(MetricsContainer metrics, Writer writer) throws IOException {
-            writer.write("# HELP " + metrics.name + " from dropwizard/codahale\n");
-            writer.write("# TYPE " + metrics.name + " " + metrics.typeName + "\n");
+        public void writeEncoded(byte[] encoded, TextOutput writer) throws IOException {
+            writer.write(encoded);
+        }
+
+        @Override
+        public void writeMetric(MetricsContainer metrics, TextOutput out) throws IOException {
+            out.write(metrics.textHeader);
 
-            for (MetricInfo metric : metrics.getMetrics()) {
+            List<MetricInfo> metricInfos = metrics.getMetrics();
+            Readout readout = metricInfos instanceof Readout ? (Readout) metricInfos : null;
+            int index = -1;
+            for (MetricInfo metric : metricInfos) {
+                index++;
+                LabelSet labels = metric.labels;
                 switch (metrics.type) {
                     case GAUGE:
                     case COUNTER:
-                        double value = 0;
-                        if (metric.metric instanceof Gauge) {
-                            Object obj = ((Gauge) metric.metric).getValue();
-                            if (obj instanceof Number) {
-                                value = ((Number) obj).doubleValue();
-                            } else if (obj instanceof Boolean) {
-                                value = ((Boolean) obj) ? 1 : 0;
-                            } else {
-                                continue;
-                            }
-                        } else if (metric.metric instanceof Metered) {
-                            value = ((Metered) metric.metric).getCount();
-                        } else if (metric.metric instanceof Counting) {
-                            value = ((Counting) metric.metric).getCount();
+                        long timestamp = 0L;
+                        switch (metric.reader) {
+                            case READOUT_LONG:
+                                series(out, metrics, labels, 0);
+                                out.writeValue(readout.longValue(index));
+                                break;
+                            case READOUT_DOUBLE:
+                                series(out, metrics, labels, 0);
+                                out.writeValue(readout.doubleValue(index));
+                                break;
+                            case LONG_GAUGE:
+                                series(out, metrics, labels, 0);
+                                out.writeValue(((LongValueGauge) metric.metric).getLong());
+                                break;
+                            case DOUBLE_GAUGE:
+                                series(out, metrics, labels, 0);
+                                out.writeValue(((DoubleValueGauge) metric.metric).getDouble());
+                                break;
+                            case SAMPLED_GAUGE:
+                                SampledGauge.Sample sample = ((SampledGauge) metric.metric).getSample();
+                                if (!boxedValue(out, metrics, labels, sample.value))
+                                    continue;
+                                timestamp = sample.timestampMillis;
+                                break;
+                            case GAUGE:
+                                if (!boxedValue(out, metrics, labels, ((Gauge) metric.metric).getValue()))
+                                    continue;
+                                break;
+                            case COUNT:
+                                series(out, metrics, labels, 0);
+                                out.writeValue(((Counting) metric.metric).getCount());
+                                break;
+                            default:
+                                series(out, metrics, labels, 0);
+                                out.writeValue(0L);
+                                break;
+                        }
+                        if (timestamp != 0L) {
+                            out.writeTimestamp(timestamp);
                         }
-                        writer.write(metrics.name);
-                        writer.write(textLabels(metric.labels, true));
-                        writer.write(" ");
-                        writer.write(Collector.doubleToGoString(value) + "\n");
+                        out.write('\n');
                         break;
                     case SUMMARY:
                         boolean isTimer = metric.metric instanceof Timer;
@@ -104,16 +142,15 @@ public interface ResponseFormat<O> {
                             sum += i;
                         }
 
-                        String labels = textLabels(metric.labels, false);
                         try {
-                            sampleValue(writer, metrics.name, labels, "0.5", snapshot.getMedian() * factor);
-                            sampleValue(writer, metrics.name, labels, "0.75", snapshot.get75thPercentile() * factor);
-                            sampleValue(writer, metrics.name, labels, "0.95", snapshot.get95thPercentile() * factor);
-                            sampleValue(writer, metrics.name, labels, "0.98", snapshot.get98thPercentile() * factor);
-                            sampleValue(writer, metrics.name, labels, "0.99", snapshot.get99thPercentile() * factor);
-                            sampleValue(writer, metrics.name, labels, "0.999", snapshot.get999thPercentile() * factor);
-                            sampleValue(writer, metrics.name + "_count", labels, null, ((Counting) metric.metric).getCount());
-                            sampleValue(writer, metrics.name + "_sum", labels, null, sum * factor);
+                            sampleValue(out, metrics, labels, 0, snapshot.getMedian() * factor);
+                            sampleValue(out, metrics, labels, 1, snapshot.get75thPercentile() * factor);
+                            sampleValue(out, metrics, labels, 2, snapshot.get95thPercentile() * factor);
+                            sampleValue(out, metrics, labels, 3, snapshot.get98thPercentile() * factor);
+                            sampleValue(out, metrics, labels, 4, snapshot.get99thPercentile() * factor);
+                            sampleValue(out, metrics, labels, 5, snapshot.get999thPercentile() * factor);
+                            sampleValue(out, metrics, labels, COUNT, ((Counting) metric.metric).getCount());
+                            sampleValue(out, metrics, labels, SUM, sum * factor);
                         }
                         catch (Exception e) {
                             LOGGER.warn("Failed to build metric values for {} ({}) due to {}", metrics.name, metric.sourceName, e.toString());
@@ -123,17 +160,55 @@ public interface ResponseFormat<O> {
             }
         }
 
-        private String textLabels(String[][] labels, boolean withBrackets) {
-            if (labels.length == 0)
-                return "";
+        /**
+         * Builds the {@code # HELP} and {@code # TYPE} lines of a metric family.
+         */
+        static byte[] familyHeader(MetricsContainer metrics) {
+            return ("# HELP " + metrics.name + " from dropwizard/codahale\n" +
+                    "# TYPE " + metrics.name + " " + metrics.typeName + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Builds the label-independent parts of the samples of a family, so that a scrape only has to
+         * concatenate them with the series' {@link LabelSet#text} and format the values.
+         * Summaries get one name per quantile followed by the {@code _count} and {@code _sum} names.
+         */
+        static byte[][] sampleNames(MetricsContainer metrics) {
+            if (metrics.type != Prometheus.MetricType.SUMMARY)
+                return new byte[][]{ metrics.name.getBytes(StandardCharsets.UTF_8) };
+
+            byte[][] names = new byte[SUM + 1][];
+            for (int i = 0; i < QUANTILES.length; i++) {
+                names[i] = (metrics.name + '{').getBytes(StandardCharsets.UTF_8);
+            }
+            names[COUNT] = (metrics.name + "_count{").getBytes(StandardCharsets.UTF_8);
+            names[SUM] = (metrics.name + "_sum{").getBytes(StandardCharsets.UTF_8);
+            return names;
+        }
+
+        /**
+         * Counterpart of {@link #sampleNames(MetricsContainer)} written after the series' labels.
+         */
+        static byte[][] sampleSuffixes(MetricsContainer metrics) {
+            if (metrics.type != Prometheus.MetricType.SUMMARY)
+                return new byte[][]{ "} ".getBytes(StandardCharsets.UTF_8) };
+
+            byte[][] suffixes = new byte[SUM + 1][];
+            for (int i = 0; i < QUANTILES.length; i++) {
+                suffixes[i] = ("quantile=\"" + QUANTILES[i] + "\"} ").getBytes(StandardCharsets.UTF_8);
+            }
+            suffixes[COUNT] = suffixes[SUM] = "} ".getBytes(StandardCharsets.UTF_8);
+            return suffixes;
+        }
+
+        /**
+         * Builds the {@code name=value,} pairs of a label set, without the enclosing brackets.
+         */
+        static String textLabels(String[][] labels) {
             StringBuilder sb = new StringBuilder();
-            if (withBrackets)
-                sb.append('{');
             for (String[] label : labels) {
                 sb.append(label[0]).append('=').append(escapeLabelValue(label[1])).append(',');
             }
-            if (withBrackets)
-                sb.append('}');
             return sb.toString();
         }
 
@@ -141,80 +216,161 @@ public interface ResponseFormat<O> {
             return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
         }
 
-        private void sampleValue(Writer writer, String name, String labels, String quant, double v) throws IOException {
-            writer.write(name);
-            if (quant != null || labels != null)
-                writer.write('{');
-            if (labels != null) {
-                writer.write(labels);
+        /**
+         * Writes the {@code name{labels} } part of a sample.
+         */
+        private static void series(TextOutput out, MetricsContainer metrics, LabelSet labels, int sample) throws IOException {
+            out.write(metrics.textNames[sample]);
+            if (labels.text.length == 0 && metrics.type != Prometheus.MetricType.SUMMARY) {
+                out.write(' ');
+                return;
             }
-            if (quant != null) {
-                writer.write("quantile=\"");
-                writer.write(quant);
-                writer.write("\"");
+            if (metrics.type != Prometheus.MetricType.SUMMARY)
+                out.write('{');
+            out.write(labels.text);
+            out.write(metrics.textSuffixes[sample]);
+        }
+
+        /**
+         * Writes the series and the value of a gauge that does not provide a primitive value.
+         *
+         * @return {@code false}, if nothing has been written, because the value is not numeric
+         */
+        private static boolean boxedValue(TextOutput out, MetricsContainer metrics, LabelSet labels, Object obj) throws IOException {
+            if (obj instanceof Long || obj instanceof Integer) {
+                series(out, metrics, labels, 0);
+                out.writeValue(((Number) obj).longValue());
+            } else if (obj instanceof Number) {
+                series(out, metrics, labels, 0);
+                out.writeValue(((Number) obj).doubleValue());
+            } else if (obj instanceof Boolean) {
+                series(out, metrics, labels, 0);
+                out.writeValue(((Boolean) obj) ? 1L : 0L);
+            } else {
+                return false;
             }
-            if (quant != null || labels != null)
-                writer.write('}');
-            writer.write(' ');
-            writer.write(Collector.doubleToGoString(v));
-            writer.write('\n');
+            return true;
+        }
+
+        private void sampleValue(TextOutput out, MetricsContainer metrics, LabelSet labels, int sample, double v) throws IOException {
+            series(out, metrics, labels, sample);
+            out.writeValue(v);
+            out.write('\n');
+        }
+
+        private void sampleValue(TextOutput out, MetricsContainer metrics, LabelSet labels, int sample, long v) throws IOException {
+            series(out, metrics, labels, sample);
+            out.writeValue(v);
+            out.write('\n');
         }
     }
 
-    final class ProtobufFormat implements ResponseFormat<CodedOutputStream> {
+    final class ProtobufFormat implements ResponseFormat<ProtobufOutput> {
         private static final Logger LOGGER = LoggerFactory.getLogger(ProtobufFormat.class);
         private static final String CONTENT_TYPE_004 = "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited";
 
+        private static final int SUM = ProtobufOutput.QUANTILES;
+
         @Override
         public String contentType() {
             return CONTENT_TYPE_004;
         }
 
         @Override
-        public void finish(CodedOutputStream output) throws IOException {
+        public void finish(ProtobufOutput output) throws IOException {
             output.flush();
         }
 
         @Override
-        public CodedOutputStream createOutput(OutputStream output) {
-            return CodedOutputStream.newInstance(output);
+        public void writeEncoded(byte[] encoded, ProtobufOutput writer) throws IOException {
+            writer.writeEncoded(encoded);
+        }
+
+        @Override
+        public ProtobufOutput createOutput(OutputStream output) {
+            return new ProtobufOutput(output);
         }
 
         @Override
-        public void writeMetric(MetricsContainer metrics, CodedOutputStream writer) throws IOException {
-            Prometheus.MetricFamily.Builder builder = Prometheus.MetricFamily.newBuilder().
-                    setHelp("from dropwizard/codahale " + metrics.name).
-                    setName(metrics.name).
-                    setType(metrics.type);
+        public void writeMetric(MetricsContainer metrics, ProtobufOutput writer) throws IOException {
+            writer.begin(metrics.type == Prometheus.MetricType.SUMMARY ? SUM + 1 : 1);
+            double[] values;
+            int off;
 
-            for (MetricInfo metric : metrics.getMetrics()) {
+            List<MetricInfo> metricInfos = metrics.getMetrics();
+            Readout readout = metricInfos instanceof Readout ? (Readout) metricInfos : null;
+            int index = -1;
+            for (MetricInfo metric : metricInfos) {
+                index++;
                 switch (metrics.type) {
                     case GAUGE:
-                        Object obj = ((Gauge) metric.metric).getValue();
+                        long timestamp = 0L;
                         double value;
-                        if (obj instanceof Number) {
-                            value = ((Number) obj).doubleValue();
-                        } else if (obj instanceof Boolean) {
-                            value = ((Boolean) obj) ? 1 : 0;
+                        if (metric.reader == MetricInfo.ValueReader.READOUT_LONG) {
+                            value = readout.longValue(index);
+                        } else if (metric.reader == MetricInfo.ValueReader.READOUT_DOUBLE) {
+                            value = readout.doubleValue(index);
+                        } else if (metric.reader == MetricInfo.ValueReader.LONG_GAUGE) {
+                            value = ((LongValueGauge) metric.metric).getLong();
+                        } else if (metric.reader == MetricInfo.ValueReader.DOUBLE_GAUGE) {
+                            value = ((DoubleValueGauge) metric.metric).getDouble();
                         } else {
-                            return;
+                            Object obj;
+                            if (metric.reader == MetricInfo.ValueReader.SAMPLED_GAUGE) {
+                                SampledGauge.Sample sample = ((SampledGauge) metric.metric).getSample();
+                                obj = sample.value;
+                                timestamp = sample.timestampMillis;
+                            } else {
+                                obj = ((Gauge) metric.metric).getValue();
+                            }
+                            if (obj instanceof Number) {
+                                value = ((Number) obj).doubleValue();
+                            } else if (obj instanceof Boolean) {
+                                value = ((Boolean) obj) ? 1 : 0;
+                            } else {
+                                continue;
+                            }
                         }
-                        Prometheus.Metric.Builder metricBuilder = builder.addMetricBuilder();
-                        addLabels(metricBuilder, metric);
-                        metricBuilder.setGauge(Prometheus.Gauge.newBuilder().setValue(value));
+                        off = writer.add(metric, 0L, timestamp);
+                        writer.values()[off] = value;
                         break;
                     case COUNTER:
                         long v = ((Counting) metric.metric).getCount();
-                        metricBuilder = builder.addMetricBuilder();
-                        addLabels(metricBuilder, metric);
-                        metricBuilder.setCounter(Prometheus.Counter.newBuilder().setValue(v));
+                        off = writer.add(metric, 0L);
+                        writer.values()[off] = v;
                         break;
                     case SUMMARY:
                         boolean isTimer = metric.metric instanceof Timer;
                         double factor = isTimer ? FACTOR_TIMER : 1.0d;
-                        fromSnapshotAndCount(builder, metrics, metric,
-                                ((Sampling) metric.metric).getSnapshot(),
-                                ((Counting) metric.metric).getCount(), factor);
+                        Snapshot snapshot = ((Sampling) metric.metric).getSnapshot();
+                        long count = ((Counting) metric.metric).getCount();
+
+                        long sum = 0;
+                        for (long i : snapshot.getValues()) {
+                            sum += i;
+                        }
+
+                        try {
+                            double median = snapshot.getMedian() * factor;
+                            double p75 = snapshot.get75thPercentile() * factor;
+                            double p95 = snapshot.get95thPercentile() * factor;
+                            double p98 = snapshot.get98thPercentile() * factor;
+                            double p99 = snapshot.get99thPercentile() * factor;
+                            double p999 = snapshot.get999thPercentile() * factor;
+
+                            off = writer.add(metric, count);
+                            values = writer.values();
+                            values[off] = median;
+                            values[off + 1] = p75;
+                            values[off + 2] = p95;
+                            values[off + 3] = p98;
+                            values[off + 4] = p99;
+                            values[off + 5] = p999;
+                            values[off + SUM] = sum * factor;
+                        }
+                        catch (Exception e) {
+                            LOGGER.warn("Failed to build metric values for {} ({}) due to {}", metrics.name, metric.sourceName, e.toString());
+                        }
                         break;
                 }
 // TODO somehow possible to add mean, one-minute, five-minute, fifteen-minute rates along WITH the histogram/meter ?
@@ -227,42 +383,7 @@ public interface ResponseFormat<O> {
 //                }
             }
 
-            if (builder.getMetricCount() > 0) {
-                writer.writeMessageNoTag(builder.build());
-            }
-        }
-
-        private void addLabels(Prometheus.Metric.Builder metricBuilder, MetricInfo metric) {
-            for (String[] label : metric.labels) {
-                metricBuilder.addLabelBuilder()
-                        .setName(label[0])
-                        .setValue(label[1]);
-            }
-        }
-
-        private void fromSnapshotAndCount(Prometheus.MetricFamily.Builder builder, MetricsContainer metrics, MetricInfo metric, Snapshot snapshot, long count, double factor) {
-            long sum = 0;
-            for (long i : snapshot.getValues()) {
-                sum += i;
-            }
-
-            try {
-                Prometheus.Summary.Builder summaryBuilder = Prometheus.Summary.newBuilder();
-                summaryBuilder.addQuantileBuilder().setQuantile(.5d).setValue(snapshot.getMedian() * factor);
-                summaryBuilder.addQuantileBuilder().setQuantile(.75d).setValue(snapshot.get75thPercentile() * factor);
-                summaryBuilder.addQuantileBuilder().setQuantile(.95d).setValue(snapshot.get95thPercentile() * factor);
-                summaryBuilder.addQuantileBuilder().setQuantile(.98d).setValue(snapshot.get98thPercentile() * factor);
-                summaryBuilder.addQuantileBuilder().setQuantile(.99d).setValue(snapshot.get99thPercentile() * factor);
-                summaryBuilder.addQuantileBuilder().setQuantile(.999d).setValue(snapshot.get999thPercentile() * factor);
-                summaryBuilder.setSampleCount(count);
-                summaryBuilder.setSampleSum(sum * factor);
-                Prometheus.Metric.Builder metricBuilder = builder.addMetricBuilder();
-                addLabels(metricBuilder, metric);
-                metricBuilder.setSummary(summaryBuilder);
-            }
-            catch (Exception e) {
-                LOGGER.warn("Failed to build metric values for {} ({}) due to {}", metrics.name, metric.sourceName, e.toString());
-            }
+            writer.writeFamily(metrics);
         }
     }
 }
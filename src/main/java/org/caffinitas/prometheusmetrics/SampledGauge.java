@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.codahale.metrics.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Gauge that serves the last value sampled from an expensive gauge by {@link GaugeSampler}
+ * instead of calling that gauge on every scrape.
+ */
+final class SampledGauge<T> implements Gauge<T> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SampledGauge.class);
+
+    private static final Sample<?> NONE = new Sample<>(null, 0L);
+
+    final String sourceName;
+    private final Gauge<T> gauge;
+    private final boolean exportTimestamp;
+
+    @SuppressWarnings("unchecked")
+    private volatile Sample<T> sample = (Sample<T>) NONE;
+
+    ScheduledFuture<?> future;
+
+    SampledGauge(String sourceName, Gauge<T> gauge, boolean exportTimestamp) {
+        this.sourceName = sourceName;
+        this.gauge = gauge;
+        this.exportTimestamp = exportTimestamp;
+    }
+
+    void sample() {
+        try {
+            sample = new Sample<>(gauge.getValue(), exportTimestamp ? System.currentTimeMillis() : 0L);
+        } catch (Exception e) {
+            LOGGER.warn("Failed to sample gauge {} due to {}", sourceName, e.toString());
+        }
+    }
+
+    /**
+     * The last sampled value and its timestamp, {@code null} value before the first sample has been taken.
+     */
+    Sample<T> getSample() {
+        return sample;
+    }
+
+    @Override
+    public T getValue() {
+        return sample.value;
+    }
+
+    static final class Sample<T> {
+        final T value;
+        /**
+         * Wall clock time of the sample in milliseconds or {@code 0}, if the timestamp shall not be exported.
+         */
+        final long timestampMillis;
+
+        Sample(T value, long timestampMillis) {
+            this.value = value;
+            this.timestampMillis = timestampMillis;
+        }
+    }
+}
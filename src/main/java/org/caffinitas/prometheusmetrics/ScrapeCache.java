@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.codahale.metrics.Counter;
+import io.prometheus.client.Prometheus;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single-flight cache for encoded scrape responses.
+ * Concurrent scrapes for the same key (response format plus content encoding) share one
+ * collection, and the encoded bytes are served to all scrapes arriving within the TTL.
+ * <p>
+ * A response that is not complete, because families were skipped after the deadline of the scrape
+ * that started the collection, is only served to the scrapes that waited for it and not cached.
+ * A collection is cancelled once all scrapes waiting for it are gone.
+ * </p>
+ */
+final class ScrapeCache {
+    private final long ttlNanos;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    final Counter hits = new Counter();
+    final Counter misses = new Counter();
+
+    ScrapeCache(long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    MetricsContainer metricsContainer() {
+        return new MetricsContainer("PrometheusExporter_ScrapeCache", "scrape response cache", Prometheus.MetricType.COUNTER)
+                .addMetric("PrometheusExporter_ScrapeCache_Hits", hits, "result", "hit")
+                .addMetric("PrometheusExporter_ScrapeCache_Misses", misses, "result", "miss");
+    }
+
+    /**
+     * Collects and encodes a response.
+     */
+    interface Load {
+        byte[] collect() throws Exception;
+
+        /**
+         * Whether the response returned by {@link #collect()} may be served to later scrapes.
+         */
+        boolean complete();
+
+        /**
+         * Called when no scrape waits for the response anymore.
+         */
+        void cancel();
+    }
+
+    /**
+     * A scrape waiting for a response.
+     */
+    static final class Waiter {
+        final CompletableFuture<byte[]> future;
+        private final Entry entry;
+        private boolean abandoned;
+
+        private Waiter(Entry entry) {
+            this.future = entry.future;
+            this.entry = entry;
+        }
+
+        /**
+         * Stops waiting for the response, for example because the client disconnected.
+         */
+        void abandon() {
+            if (!abandoned) {
+                abandoned = true;
+                entry.abandon();
+            }
+        }
+    }
+
+    /**
+     * Returns the cached response for {@code key}, joins an in-flight collection for {@code key}
+     * or runs {@code load} using {@code executor}, if neither exists.
+     */
+    Waiter get(String key, Load load, Executor executor) {
+        while (true) {
+            long now = System.nanoTime();
+            Entry entry = entries.get(key);
+            if (entry != null && entry.isValid(now) && entry.join()) {
+                hits.inc();
+                return new Waiter(entry);
+            }
+
+            Entry fresh = new Entry(key, now, load);
+            boolean installed = entry == null
+                    ? entries.putIfAbsent(key, fresh) == null
+                    : entries.replace(key, entry, fresh);
+            if (!installed)
+                continue;
+
+            misses.inc();
+            try {
+                executor.execute(() -> {
+                    try {
+                        byte[] bytes = load.collect();
+                        if (!load.complete())
+                            entries.remove(key, fresh);
+                        fresh.future.complete(bytes);
+                    } catch (Throwable t) {
+                        entries.remove(key, fresh);
+                        fresh.future.completeExceptionally(t);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                entries.remove(key, fresh);
+                fresh.future.completeExceptionally(e);
+            }
+            return new Waiter(fresh);
+        }
+    }
+
+    private final class Entry {
+        final String key;
+        final long created;
+        final Load load;
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        /**
+         * Scrapes waiting for the collection, 0 once it has been cancelled.
+         */
+        final AtomicInteger waiters = new AtomicInteger(1);
+
+        Entry(String key, long created, Load load) {
+            this.key = key;
+            this.created = created;
+            this.load = load;
+        }
+
+        boolean isValid(long now) {
+            if (!future.isDone())
+                return true;
+            return !future.isCompletedExceptionally() && now - created < ttlNanos;
+        }
+
+        /**
+         * Registers another scrape waiting for the collection, fails if it has been cancelled.
+         */
+        boolean join() {
+            if (future.isDone())
+                return true;
+            for (int n; (n = waiters.get()) > 0; ) {
+                if (waiters.compareAndSet(n, n + 1))
+                    return true;
+            }
+            return false;
+        }
+
+        void abandon() {
+            if (!future.isDone() && waiters.decrementAndGet() == 0) {
+                entries.remove(key, this);
+                load.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.codahale.metrics.Gauge;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.prometheus.client.Prometheus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Deadline of a single scrape, derived from the {@value #TIMEOUT_HEADER} request header.
+ * Metrics containers that would be written after the deadline are skipped, and the number of
+ * skipped families is reported in the {@code PrometheusExporter_DroppedFamilies} gauge appended
+ * to each response.
+ */
+final class ScrapeDeadline {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScrapeDeadline.class);
+
+    static final String TIMEOUT_HEADER = "X-Prometheus-Scrape-Timeout-Seconds";
+
+    /**
+     * Longer scrape timeouts are capped to this value.
+     */
+    static final long MAX_TIMEOUT_SECONDS = 3600L;
+
+    private final long deadlineNanos;
+    private final MetricsContainer droppedFamilies;
+
+    // only modified by the thread that is currently encoding the response
+    private int dropped;
+    private volatile boolean cancelled;
+
+    private ScrapeDeadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+        this.droppedFamilies = new MetricsContainer("PrometheusExporter_DroppedFamilies", "metric families not collected before the scrape deadline", Prometheus.MetricType.GAUGE)
+                .addMetric("PrometheusExporter_DroppedFamilies", (Gauge<Integer>) () -> dropped);
+    }
+
+    /**
+     * A deadline that never passes.
+     */
+    static ScrapeDeadline none() {
+        return new ScrapeDeadline(0L);
+    }
+
+    static ScrapeDeadline forRequest(HttpRequest req, ExporterConfig config) {
+        String timeout = HttpHeaders.getHeader(req, TIMEOUT_HEADER);
+        long timeoutMillis = 0L;
+        if (timeout != null) {
+            try {
+                double seconds = Double.parseDouble(timeout.trim());
+                // also rejects NaN
+                if (seconds > 0d && !Double.isInfinite(seconds))
+                    timeoutMillis = (long) (Math.min(seconds, MAX_TIMEOUT_SECONDS) * 1000d);
+                else
+                    LOGGER.debug("Ignoring invalid {} header '{}'", TIMEOUT_HEADER, timeout);
+            } catch (NumberFormatException e) {
+                LOGGER.debug("Ignoring invalid {} header '{}'", TIMEOUT_HEADER, timeout);
+            }
+        }
+        if (timeoutMillis <= 0L)
+            return none();
+
+        // leave some time to send the response, but never less than half of the scrape timeout for the collection
+        long collectMillis = Math.max(timeoutMillis - config.scrapeTimeoutOffsetMillis, timeoutMillis / 2);
+        return new ScrapeDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(collectMillis));
+    }
+
+    /**
+     * The metrics containers to write, followed by the {@code PrometheusExporter_DroppedFamilies} gauge.
+     */
+    Iterable<MetricsContainer> containers(Collection<MetricsContainer> containers) {
+        return () -> Stream.concat(containers.stream(), Stream.of(droppedFamilies)).iterator();
+    }
+
+    /**
+     * Skips all remaining families, used when no client waits for the response anymore.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Number of families skipped so far, read by the thread that encodes the response.
+     */
+    int dropped() {
+        return dropped;
+    }
+
+    /**
+     * Whether {@code container} shall be skipped, because the deadline has passed or the scrape has
+     * been cancelled.
+     */
+    boolean skip(MetricsContainer container) {
+        if (container == droppedFamilies)
+            return false;
+        if (!cancelled && (deadlineNanos == 0L || System.nanoTime() - deadlineNanos < 0L))
+            return false;
+        if (dropped++ == 0)
+            LOGGER.debug("Scrape deadline passed, skipping remaining metric families");
+        return true;
+    }
+}
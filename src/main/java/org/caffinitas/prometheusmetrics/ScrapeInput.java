@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Lazily produced response body of a streamed scrape, consumed by {@link ChunkedWriteHandler}.
+ * <p>
+ * Metrics containers are encoded on {@code executor} until {@code maxPendingChunks} chunks are
+ * waiting to be written. Encoding then pauses until {@link ChunkedWriteHandler} pulls chunks again,
+ * which it only does while the channel is writable. So a slow client does not let the whole encoded
+ * response pile up in the channel's outbound buffer.
+ * </p>
+ */
+final class ScrapeInput implements ChunkedInput<HttpContent> {
+    private final ChunkedWriteHandler chunkedWriter;
+    private final Executor executor;
+    private final Iterator<MetricsContainer> containers;
+    private final ResponseFormat responseFormat;
+    private final BiConsumer<MetricsContainer, Object> containerWriter;
+    private final int maxPendingChunks;
+
+    private final HttpChunkOutputStream stream;
+    private final Object output;
+
+    private final Queue<ByteBuf> chunks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingChunks = new AtomicInteger();
+    private final AtomicBoolean producing = new AtomicBoolean();
+
+    private volatile boolean produced;
+    private volatile Throwable failure;
+    private volatile boolean closed;
+    private boolean endOfInput;
+
+    @SuppressWarnings("unchecked")
+    ScrapeInput(ChannelHandlerContext ctx, Executor executor, Iterable<MetricsContainer> containers,
+                ResponseFormat responseFormat, BiConsumer<MetricsContainer, Object> containerWriter,
+                ExporterConfig config) {
+        this.chunkedWriter = ctx.pipeline().get(ChunkedWriteHandler.class);
+        this.executor = executor;
+        this.containers = containers.iterator();
+        this.responseFormat = responseFormat;
+        this.containerWriter = containerWriter;
+        this.maxPendingChunks = Math.max(1, config.maxPendingChunks);
+        this.stream = new HttpChunkOutputStream(ctx.alloc(), config.chunkSize, config.directBuffers, this::chunkProduced);
+        this.output = responseFormat.createOutput(stream);
+    }
+
+    /**
+     * Starts encoding the response.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if {@code executor} rejects the collection
+     */
+    void start() {
+        producing.set(true);
+        try {
+            executor.execute(this::produce);
+        } catch (RuntimeException e) {
+            producing.set(false);
+            throw e;
+        }
+    }
+
+    @Override
+    public HttpContent readChunk(ChannelHandlerContext ctx) throws Exception {
+        boolean complete = produced;
+        ByteBuf chunk = chunks.poll();
+        if (chunk != null) {
+            pendingChunks.decrementAndGet();
+            produceMore();
+            return new DefaultHttpContent(chunk);
+        }
+
+        if (complete) {
+            Throwable t = failure;
+            if (t != null)
+                throw t instanceof Exception ? (Exception) t : new RuntimeException(t);
+            endOfInput = true;
+            return LastHttpContent.EMPTY_LAST_CONTENT;
+        }
+
+        produceMore();
+        return null;
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return endOfInput;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        releaseChunks();
+        // a running producer discards the stream itself once it sees 'closed'
+        discardIfIdle();
+    }
+
+    private void produceMore() {
+        if (produced || closed || pendingChunks.get() >= maxPendingChunks || !producing.compareAndSet(false, true))
+            return;
+        try {
+            executor.execute(this::produce);
+        } catch (RuntimeException e) {
+            failure = e;
+            produced = true;
+            producing.set(false);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void produce() {
+        try {
+            while (!closed && pendingChunks.get() < maxPendingChunks && containers.hasNext())
+                containerWriter.accept(containers.next(), output);
+            if (!closed && !containers.hasNext()) {
+                responseFormat.finish(output);
+                stream.flush();
+                produced = true;
+            }
+        } catch (Throwable t) {
+            stream.discard();
+            failure = t;
+            produced = true;
+        } finally {
+            producing.set(false);
+        }
+
+        if (closed) {
+            discardIfIdle();
+        } else {
+            // ChunkedWriteHandler suspends the transfer when readChunk() returns null - let it
+            // pull the chunks produced so far or start encoding the next containers.
+            chunkedWriter.resumeTransfer();
+        }
+    }
+
+    /**
+     * Releases the partially filled chunk of the stream and all pending chunks, unless a producer is
+     * running. Keeps {@code producing} set, so that no producer starts afterwards.
+     */
+    private void discardIfIdle() {
+        if (producing.compareAndSet(false, true)) {
+            stream.discard();
+            releaseChunks();
+        }
+    }
+
+    private void chunkProduced(ByteBuf chunk) {
+        chunks.add(chunk);
+        if (pendingChunks.getAndIncrement() == 0)
+            chunkedWriter.resumeTransfer();
+    }
+
+    private void releaseChunks() {
+        for (ByteBuf chunk; (chunk = chunks.poll()) != null; ) {
+            pendingChunks.decrementAndGet();
+            chunk.release();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.codahale.metrics.Metric;
+import io.prometheus.client.Prometheus;
+
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Metrics container whose gauges derive their values from one snapshot, for example all
+ * {@link java.lang.management.MemoryUsage}s of a memory pool. The snapshot is taken once per scrape,
+ * when the encoder fetches the series of the container, so an MXBean is queried only once per scrape.
+ * The values read from that snapshot are returned in a {@link Readout}, so the values of a scrape are
+ * consistent with each other, even if another scrape fetches the series of the container concurrently.
+ */
+final class SnapshotContainer<S> extends MetricsContainer {
+    private final Supplier<S> reader;
+
+    SnapshotContainer(String name, String help, Supplier<S> reader) {
+        super(name, help, Prometheus.MetricType.GAUGE);
+        this.reader = reader;
+    }
+
+    /**
+     * Adds a series with a value derived from the snapshot.
+     */
+    SnapshotContainer<S> addValue(String sourceName, ToLongFunction<S> value, String... labels) {
+        addMetric(sourceName, new Value<>(value, false), labels);
+        return this;
+    }
+
+    /**
+     * Adds a series with the difference of a value derived from the snapshot to the previous scrape.
+     */
+    SnapshotContainer<S> addReadout(String sourceName, ToLongFunction<S> value, String... labels) {
+        addMetric(sourceName, new Value<>(value, true), labels);
+        return this;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    synchronized List<MetricInfo> getMetrics() {
+        S snapshot = reader.get();
+        List<MetricInfo> series = super.getMetrics();
+        long[] values = new long[series.size()];
+        for (int i = 0; i < values.length; i++) {
+            Metric metric = series.get(i).metric;
+            if (metric instanceof Value)
+                values[i] = ((Value<S>) metric).read(snapshot);
+        }
+        return new Readout(series, values);
+    }
+
+    /**
+     * A value derived from a snapshot, read with the lock of the container held.
+     */
+    private static final class Value<S> implements Readout.LongValue {
+        private final ToLongFunction<S> value;
+        private final boolean readout;
+        private long previous;
+
+        Value(ToLongFunction<S> value, boolean readout) {
+            this.value = value;
+            this.readout = readout;
+        }
+
+        long read(S snapshot) {
+            long v = value.applyAsLong(snapshot);
+            long r = readout ? v - previous : v;
+            previous = v;
+            return r;
+        }
+
+        @Override
+        public long getLong() {
+            throw new UnsupportedOperationException("value is bound to a readout");
+        }
+    }
+}
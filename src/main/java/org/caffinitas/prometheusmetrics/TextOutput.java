@@ -0,0 +1,269 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import io.prometheus.client.Collector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered output for the text format that formats sample values directly into its buffer.
+ * <p>
+ * Values are rendered exactly like {@link Collector#doubleToGoString(double)}. Integral values and
+ * decimals with up to 15 significant digits in the plain notation range take allocation free paths,
+ * all other values fall back to {@link Double#toString(double)}.
+ * </p>
+ */
+final class TextOutput extends OutputStream {
+    private static final long MAX_EXACT = 1L << 53;
+    private static final int MAX_SIGNIFICANT = 15;
+    private static final long[] POW10 = new long[19];
+    private static final byte[] NAN = {'N', 'a', 'N'};
+    private static final byte[] POS_INF = {'+', 'I', 'n', 'f'};
+    private static final byte[] NEG_INF = {'-', 'I', 'n', 'f'};
+
+    static {
+        POW10[0] = 1L;
+        for (int i = 1; i < POW10.length; i++)
+            POW10[i] = POW10[i - 1] * 10L;
+    }
+
+    private final OutputStream out;
+    private final byte[] buf;
+    private final byte[] digits = new byte[20];
+    private int pos;
+
+    TextOutput(OutputStream out) {
+        this(out, 8192);
+    }
+
+    TextOutput(OutputStream out, int size) {
+        this.out = out;
+        this.buf = new byte[size];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (pos == buf.length)
+            flushBuffer();
+        buf[pos++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > buf.length - pos) {
+            flushBuffer();
+            if (len > buf.length) {
+                out.write(b, off, len);
+                return;
+            }
+        }
+        System.arraycopy(b, off, buf, pos, len);
+        pos += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+
+    /**
+     * Writes {@code v} like {@code Collector.doubleToGoString((double) v)} - the fast path for
+     * counters and integer gauges.
+     */
+    void writeValue(long v) throws IOException {
+        if (v == 0L)
+            write0();
+        else if (v > -MAX_EXACT && v < MAX_EXACT)
+            writeIntegral(v);
+        else
+            writeValue((double) v);
+    }
+
+    /**
+     * Writes {@code v} like {@code Collector.doubleToGoString(v)}.
+     */
+    void writeValue(double v) throws IOException {
+        if (v != v) {
+            write(NAN, 0, NAN.length);
+            return;
+        }
+        if (v == Double.POSITIVE_INFINITY) {
+            write(POS_INF, 0, POS_INF.length);
+            return;
+        }
+        if (v == Double.NEGATIVE_INFINITY) {
+            write(NEG_INF, 0, NEG_INF.length);
+            return;
+        }
+
+        long l = (long) v;
+        if (l == v && l > -MAX_EXACT && l < MAX_EXACT) {
+            if (l != 0L)
+                writeIntegral(l);
+            else if (Double.doubleToRawLongBits(v) != 0L)
+                writeAscii("-0.0");
+            else
+                write0();
+            return;
+        }
+
+        double abs = Math.abs(v);
+        if (abs >= 1e-3d && abs < 1e7d && writeDecimal(v < 0d, abs))
+            return;
+
+        writeAscii(Double.toString(v));
+    }
+
+    /**
+     * Writes the timestamp of a sample in milliseconds, separated from the value by a blank.
+     */
+    void writeTimestamp(long millis) throws IOException {
+        if (millis < 0L) {
+            writeAscii(" " + millis);
+            return;
+        }
+        int n = digits(millis);
+        ensure(n + 1);
+        buf[pos++] = ' ';
+        pos += n;
+        for (int i = pos - 1; i >= pos - n; i--, millis /= 10L)
+            buf[i] = (byte) ('0' + millis % 10L);
+    }
+
+    private void write0() throws IOException {
+        ensure(3);
+        buf[pos++] = '0';
+        buf[pos++] = '.';
+        buf[pos++] = '0';
+    }
+
+    /**
+     * Writes a non-zero integral value with an absolute value less than 2^53. Those have an exact
+     * double representation and {@link Double#toString(double)} prints all their significant digits,
+     * either as {@code 123.0} or, from 10^7 on, in computerized scientific notation like {@code 1.23E7}.
+     */
+    private void writeIntegral(long v) throws IOException {
+        ensure(24);
+        if (v < 0L) {
+            buf[pos++] = '-';
+            v = -v;
+        }
+
+        int n = digits(v);
+        if (n <= 7) {
+            pos += n;
+            for (int i = pos - 1; v != 0L; i--, v /= 10L)
+                buf[i] = (byte) ('0' + v % 10L);
+            buf[pos++] = '.';
+            buf[pos++] = '0';
+            return;
+        }
+
+        for (int i = n - 1; i >= 0; i--, v /= 10L)
+            digits[i] = (byte) ('0' + v % 10L);
+        int last = n - 1;
+        while (last > 1 && digits[last] == '0')
+            last--;
+
+        buf[pos++] = digits[0];
+        buf[pos++] = '.';
+        for (int i = 1; i <= last; i++)
+            buf[pos++] = digits[i];
+        buf[pos++] = 'E';
+        int exp = n - 1;
+        if (exp >= 10)
+            buf[pos++] = (byte) ('0' + exp / 10);
+        buf[pos++] = (byte) ('0' + exp % 10);
+    }
+
+    /**
+     * Writes a non-integral value in the range {@code [10^-3, 10^7)}, which {@link Double#toString(double)}
+     * prints in plain notation, if it has a decimal representation of at most 15 significant digits.
+     * Such a representation is unique and therefore identical to the shortest one printed by
+     * {@link Double#toString(double)}.
+     *
+     * @return {@code false}, if the value needs more than 15 significant digits
+     */
+    private boolean writeDecimal(boolean negative, double abs) throws IOException {
+        long intPart = (long) abs;
+        int intDigits;
+        int leadingZeros;
+        if (intPart != 0L) {
+            intDigits = digits(intPart);
+            leadingZeros = 0;
+        } else {
+            intDigits = 0;
+            leadingZeros = abs >= 0.1d ? 0 : abs >= 0.01d ? 1 : 2;
+        }
+
+        for (int k = 1; intDigits + k - leadingZeros <= MAX_SIGNIFICANT; k++) {
+            long pow = POW10[k];
+            long m = Math.round(abs * pow);
+            if ((double) m / pow != abs)
+                continue;
+
+            ensure(24);
+            if (negative)
+                buf[pos++] = '-';
+            long i = m / pow;
+            if (i == 0L) {
+                buf[pos++] = '0';
+            } else {
+                pos += intDigits;
+                for (int p = pos - 1; i != 0L; p--, i /= 10L)
+                    buf[p] = (byte) ('0' + i % 10L);
+            }
+            buf[pos++] = '.';
+            long f = m % pow;
+            pos += k;
+            for (int p = pos - 1; p >= pos - k; p--, f /= 10L)
+                buf[p] = (byte) ('0' + f % 10L);
+            return true;
+        }
+        return false;
+    }
+
+    private void writeAscii(String s) throws IOException {
+        int len = s.length();
+        ensure(len);
+        for (int i = 0; i < len; i++)
+            buf[pos++] = (byte) s.charAt(i);
+    }
+
+    private void ensure(int len) throws IOException {
+        if (buf.length - pos < len)
+            flushBuffer();
+    }
+
+    private static int digits(long v) {
+        int n = 1;
+        while (n < POW10.length && v >= POW10[n])
+            n++;
+        return n;
+    }
+}
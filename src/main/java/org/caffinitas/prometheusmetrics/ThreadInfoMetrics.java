@@ -0,0 +1,443 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import io.prometheus.client.Prometheus;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@code JVM_ThreadInfo} family: per-thread CPU and user time, allocated bytes, blocked and waited
+ * counters since the previous scrape plus whether the thread is currently blocked.
+ * <p>
+ * All threads are queried with one bulk call per MXBean method. Each thread gets a slot, found via
+ * an open-addressing table keyed by thread ID, that holds the parsed thread name, the previous readings
+ * and the series of the thread. The series list is only rebuilt when threads start, terminate or get
+ * renamed. Each readout copies the values into a {@link Readout}, so concurrent scrapes do not see
+ * each other's values, and a scrape in steady state only allocates that copy and what the MXBean
+ * calls return.
+ * </p>
+ * <p>
+ * With {@code aggregate}, the values are summed up per thread pool instead, one series per pool
+ * and type labelled with the {@code pool} only, plus the number of threads of each pool. Threads
+ * without a pool name are their own pool. {@code topN} exports the series of the threads with the
+ * highest CPU time since the previous scrape in the separate {@code JVM_ThreadInfo_TopThreads} family,
+ * see {@link #topThreads()}, so that sums over {@code JVM_ThreadInfo} do not count them twice.
+ * </p>
+ */
+final class ThreadInfoMetrics extends MetricsContainer {
+    private static final String[] TYPES = {
+            "allocated", "blockedCount", "blockedTime", "blocked", "waitedCount", "waitedTime", "cpuTime", "userTime"
+    };
+    private static final int ALLOCATED = 0;
+    private static final int BLOCKED_COUNT = 1;
+    private static final int BLOCKED_TIME = 2;
+    private static final int BLOCKED = 3;
+    private static final int WAITED_COUNT = 4;
+    private static final int WAITED_TIME = 5;
+    private static final int CPU_TIME = 6;
+    private static final int USER_TIME = 7;
+    private static final int THREADS = TYPES.length;
+
+    private final com.sun.management.ThreadMXBean tmx;
+    private final boolean aggregate;
+    private final int topN;
+
+    // all guarded by this
+    private long[] tids = new long[0];
+    private ThreadSlot[] slots = new ThreadSlot[0];
+    private int size;
+    private ThreadSlot[] live = new ThreadSlot[256];
+    private List<MetricInfo> series = Collections.emptyList();
+    /**
+     * The threads of {@link #series} in the same order, unless aggregated.
+     */
+    private ThreadSlot[] exported = new ThreadSlot[0];
+    private final Map<String, PoolSlot> pools = new LinkedHashMap<>();
+    private ThreadSlot[] top = new ThreadSlot[0];
+    private Readout current = new Readout(Collections.emptyList(), new long[0]);
+    private Readout topCurrent = current;
+    /**
+     * Incremented by each readout of the MXBeans, each family reads the MXBeans again once it has
+     * returned the current readout.
+     */
+    private long readouts;
+    private long seriesReadout;
+
+    private final TopThreads topThreads;
+
+    ThreadInfoMetrics() {
+        this(false, 0);
+    }
+
+    ThreadInfoMetrics(boolean aggregate, int topN) {
+        super("JVM_ThreadInfo", "all JVM threads", Prometheus.MetricType.GAUGE);
+        this.tmx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        this.aggregate = aggregate;
+        this.topN = aggregate ? Math.max(0, topN) : 0;
+        this.topThreads = this.topN > 0 ? new TopThreads() : null;
+        resize(256);
+    }
+
+    /**
+     * The {@code JVM_ThreadInfo_TopThreads} family or {@code null}, if {@code topN} is not used.
+     */
+    MetricsContainer topThreads() {
+        return topThreads;
+    }
+
+    @Override
+    synchronized List<MetricInfo> getMetrics() {
+        if (seriesReadout == readouts)
+            readout();
+        seriesReadout = readouts;
+        return current;
+    }
+
+    private void readout() {
+        readouts++;
+
+        long[] allTids = tmx.getAllThreadIds();
+        long[] allAllocated = tmx.getThreadAllocatedBytes(allTids);
+        long[] allCpuTime = tmx.getThreadCpuTime(allTids);
+        long[] allUserTime = tmx.getThreadUserTime(allTids);
+        ThreadInfo[] allInfos = tmx.getThreadInfo(allTids, 0);
+
+        if (live.length < allTids.length)
+            live = new ThreadSlot[allTids.length * 2];
+
+        if (aggregate) {
+            for (PoolSlot pool : pools.values())
+                pool.reset();
+        }
+
+        boolean changed = false;
+        int n = 0;
+        for (int i = 0; i < allTids.length; i++) {
+            ThreadInfo ti = allInfos[i];
+            if (ti == null)
+                // thread terminated in the meantime
+                continue;
+
+            ThreadSlot slot = get(allTids[i]);
+            if (slot == null) {
+                slot = new ThreadSlot(allTids[i], ti.getThreadName());
+                put(slot);
+                changed = true;
+            } else if (!slot.threadName.equals(ti.getThreadName())) {
+                slot.rename(ti.getThreadName());
+                changed = true;
+            }
+
+            slot.update(ti, allAllocated[i], allCpuTime[i], allUserTime[i]);
+            if (aggregate) {
+                if (slot.pool == null)
+                    slot.pool = pools.computeIfAbsent(slot.poolName, PoolSlot::new);
+                slot.pool.add(slot);
+            }
+            live[n++] = slot;
+        }
+
+        if (aggregate && pools.values().removeIf(pool -> pool.values[THREADS] == 0L))
+            changed = true;
+
+        if (n != size) {
+            // threads terminated, drop their slots
+            Arrays.fill(tids, 0L);
+            Arrays.fill(slots, null);
+            size = 0;
+            for (int i = 0; i < n; i++)
+                put(live[i]);
+            changed = true;
+        }
+
+        if (changed) {
+            List<MetricInfo> list = new ArrayList<>(n * TYPES.length);
+            if (aggregate) {
+                for (PoolSlot pool : pools.values())
+                    Collections.addAll(list, pool.series);
+            } else {
+                exported = Arrays.copyOf(live, n);
+                for (int i = 0; i < n; i++)
+                    Collections.addAll(list, live[i].series);
+            }
+            series = Collections.unmodifiableList(list);
+        }
+
+        long[] values = new long[series.size()];
+        int v = 0;
+        if (aggregate) {
+            for (PoolSlot pool : pools.values()) {
+                System.arraycopy(pool.values, 0, values, v, pool.values.length);
+                v += pool.values.length;
+            }
+        } else {
+            for (ThreadSlot slot : exported) {
+                System.arraycopy(slot.values, 0, values, v, TYPES.length);
+                v += TYPES.length;
+            }
+        }
+        current = new Readout(series, values);
+
+        if (topN > 0)
+            topCurrent = topThreads(n);
+        Arrays.fill(live, 0, n, null);
+    }
+
+    @Override
+    synchronized int size() {
+        return series.size();
+    }
+
+    /**
+     * The series of the {@code topN} threads with the highest CPU time since the previous scrape.
+     */
+    private Readout topThreads(int n) {
+        if (top.length < topN)
+            top = new ThreadSlot[topN];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            ThreadSlot slot = live[i];
+            long cpu = slot.values[CPU_TIME];
+            if (k == topN && cpu <= top[k - 1].values[CPU_TIME])
+                continue;
+            int j = k < topN ? k++ : k - 1;
+            for (; j > 0 && top[j - 1].values[CPU_TIME] < cpu; j--)
+                top[j] = top[j - 1];
+            top[j] = slot;
+        }
+
+        List<MetricInfo> list = new ArrayList<>(k * TYPES.length);
+        long[] values = new long[k * TYPES.length];
+        for (int i = 0; i < k; i++) {
+            Collections.addAll(list, top[i].series);
+            System.arraycopy(top[i].values, 0, values, i * TYPES.length, TYPES.length);
+        }
+        Arrays.fill(top, 0, k, null);
+        return new Readout(Collections.unmodifiableList(list), values);
+    }
+
+    /**
+     * Shares the readouts of the enclosing {@code JVM_ThreadInfo} family.
+     */
+    private final class TopThreads extends MetricsContainer {
+        private long topReadout;
+
+        TopThreads() {
+            super("JVM_ThreadInfo_TopThreads", "JVM threads with the highest CPU time", Prometheus.MetricType.GAUGE);
+        }
+
+        @Override
+        List<MetricInfo> getMetrics() {
+            synchronized (ThreadInfoMetrics.this) {
+                if (topReadout == readouts)
+                    readout();
+                topReadout = readouts;
+                return topCurrent;
+            }
+        }
+
+        @Override
+        int size() {
+            synchronized (ThreadInfoMetrics.this) {
+                return topCurrent.size();
+            }
+        }
+    }
+
+    private ThreadSlot get(long tid) {
+        int mask = slots.length - 1;
+        for (int i = hash(tid) & mask; slots[i] != null; i = (i + 1) & mask) {
+            if (tids[i] == tid)
+                return slots[i];
+        }
+        return null;
+    }
+
+    private void put(ThreadSlot slot) {
+        if ((size + 1) * 2 > slots.length)
+            resize(slots.length * 2);
+        int mask = slots.length - 1;
+        int i = hash(slot.tid) & mask;
+        while (slots[i] != null)
+            i = (i + 1) & mask;
+        tids[i] = slot.tid;
+        slots[i] = slot;
+        size++;
+    }
+
+    private void resize(int capacity) {
+        ThreadSlot[] old = slots;
+        tids = new long[capacity];
+        slots = new ThreadSlot[capacity];
+        size = 0;
+        for (ThreadSlot slot : old) {
+            if (slot != null)
+                put(slot);
+        }
+    }
+
+    private static int hash(long tid) {
+        long h = tid * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Splits a thread name like {@code ReadStage-3} or {@code CompactionExecutor:12} into the pool name
+     * and the ID of the thread within the pool. The pool name is {@code null} for names without a pool.
+     */
+    static String[] parseThreadName(String threadName) {
+        String poolName = null;
+        String perPoolId = null;
+        try {
+            for (int ci = threadName.length() - 1; ci >= 0; ci--) {
+                char c = threadName.charAt(ci);
+                if (!Character.isDigit(c) && c != ':' && c != '-') {
+                    c = threadName.charAt(ci + 1);
+                    if (c == ':' || c == '-')
+                        perPoolId = threadName.substring(ci + 2);
+                    else
+                        perPoolId = threadName.substring(ci + 1);
+                    poolName = threadName.substring(0, ci + 1);
+                    break;
+                }
+            }
+        }
+        catch (StringIndexOutOfBoundsException ignored) {
+        }
+        if (poolName == null) {
+            perPoolId = threadName;
+        }
+        return new String[]{poolName, perPoolId};
+    }
+
+    private static String[][] labels(String type, String poolName, String perPoolId) {
+        if (poolName != null)
+            return new String[][] {
+                    new String[]{"type", type},
+                    new String[]{"pool", poolName},
+                    new String[]{"thread", perPoolId}
+            };
+
+        return new String[][] {
+                new String[]{"type", type},
+                new String[]{"thread", perPoolId}
+        };
+    }
+
+    private static final class ThreadSlot {
+        final long tid;
+        String threadName;
+        String poolName;
+        PoolSlot pool;
+        final MetricInfo[] series = new MetricInfo[TYPES.length];
+
+        // cumulative readings of the previous scrape, the exported values are the differences
+        private long blockedCount = -1L;
+        private long blockedTime;
+        private long waitedCount;
+        private long waitedTime;
+        private long cpuTime;
+        private long userTime;
+        private long allocated;
+
+        final long[] values = new long[TYPES.length];
+
+        ThreadSlot(long tid, String threadName) {
+            this.tid = tid;
+            rename(threadName);
+        }
+
+        void rename(String threadName) {
+            this.threadName = threadName;
+            String[] poolAndId = parseThreadName(threadName);
+            this.poolName = poolAndId[0] != null ? poolAndId[0] : threadName;
+            this.pool = null;
+            for (int t = 0; t < TYPES.length; t++)
+                series[t] = new MetricInfo<>("", Readout.LONG, labels(TYPES[t], poolAndId[0], poolAndId[1]));
+        }
+
+        void update(ThreadInfo ti, long allocated, long cpuTime, long userTime) {
+            if (blockedCount == -1L) {
+                // first time this thread has been seen
+                this.blockedCount = ti.getBlockedCount();
+                this.blockedTime = ti.getBlockedTime();
+                this.waitedCount = ti.getWaitedCount();
+                this.waitedTime = ti.getWaitedTime();
+                this.cpuTime = cpuTime;
+                this.userTime = userTime;
+                this.allocated = allocated;
+            }
+
+            long c = ti.getBlockedCount();
+            values[BLOCKED_COUNT] = c - blockedCount;
+            blockedCount = c;
+            c = ti.getBlockedTime();
+            values[BLOCKED_TIME] = c - blockedTime;
+            blockedTime = c;
+            values[BLOCKED] = ti.getLockName() != null ? 1L : 0L;
+            c = ti.getWaitedCount();
+            values[WAITED_COUNT] = c - waitedCount;
+            waitedCount = c;
+            c = ti.getWaitedTime();
+            values[WAITED_TIME] = c - waitedTime;
+            waitedTime = c;
+            values[CPU_TIME] = cpuTime - this.cpuTime;
+            this.cpuTime = cpuTime;
+            values[USER_TIME] = userTime - this.userTime;
+            this.userTime = userTime;
+            values[ALLOCATED] = allocated - this.allocated;
+            this.allocated = allocated;
+        }
+    }
+
+    /**
+     * Sums of the values of all threads of a pool.
+     */
+    private static final class PoolSlot {
+        final long[] values = new long[TYPES.length + 1];
+        final MetricInfo[] series = new MetricInfo[TYPES.length + 1];
+
+        PoolSlot(String poolName) {
+            for (int t = 0; t <= TYPES.length; t++) {
+                String[][] labels = {
+                        new String[]{"type", t < TYPES.length ? TYPES[t] : "threads"},
+                        new String[]{"pool", poolName}
+                };
+                series[t] = new MetricInfo<>("", Readout.LONG, labels);
+            }
+        }
+
+        void reset() {
+            Arrays.fill(values, 0L);
+        }
+
+        void add(ThreadSlot thread) {
+            for (int t = 0; t < TYPES.length; t++)
+                values[t] += thread.values[t];
+            values[THREADS]++;
+        }
+    }
+}
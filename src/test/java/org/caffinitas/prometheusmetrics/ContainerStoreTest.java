@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import io.prometheus.client.Prometheus;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class ContainerStoreTest {
+    @Test
+    public void testSnapshots() {
+        ContainerStore store = new ContainerStore();
+        assertEquals(store.snapshot().size(), 0);
+
+        store.add(container("a"));
+        List<MetricsContainer> snapshot = store.snapshot();
+        assertEquals(snapshot.size(), 1);
+        assertSame(store.snapshot(), snapshot);
+
+        store.add(container("b"));
+        assertEquals(snapshot.size(), 1);
+        assertEquals(store.snapshot().size(), 2);
+
+        store.remove("a");
+        store.remove("c");
+        assertEquals(store.snapshot().size(), 1);
+        assertEquals(store.get("b").name, "b");
+    }
+
+    @Test
+    public void testBatch() {
+        ContainerStore store = new ContainerStore();
+        store.add(container("a"));
+        List<MetricsContainer> snapshot = store.snapshot();
+
+        store.beginBatch();
+        store.beginBatch();
+        for (int i = 0; i < 200; i++)
+            store.add(container("t" + i));
+        store.endBatch();
+        assertSame(store.snapshot(), snapshot);
+        store.remove("a");
+        assertSame(store.snapshot(), snapshot);
+        store.endBatch();
+
+        assertEquals(store.snapshot().size(), 200);
+    }
+
+    @Test
+    public void testBatchAfterUnpublishedChange() {
+        ContainerStore store = new ContainerStore();
+        store.snapshot();
+
+        // no scrape has seen "a" before the batch starts
+        store.add(container("a"));
+        store.beginBatch();
+        store.add(container("t1"));
+        assertEquals(names(store.snapshot()), names("a"));
+        store.add(container("t2"));
+        store.remove("a");
+        assertEquals(names(store.snapshot()), names("a"));
+        store.endBatch();
+
+        assertEquals(names(store.snapshot()), names("t1", "t2"));
+    }
+
+    @Test
+    public void testBatchPerThread() throws Exception {
+        ContainerStore store = new ContainerStore();
+        store.add(container("a"));
+
+        CountDownLatch inBatch = new CountDownLatch(1);
+        CountDownLatch endBatch = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread batchThread = new Thread(() -> {
+            try {
+                store.beginBatch();
+                try {
+                    store.add(container("t1"));
+                    store.add(container("t2"));
+                    inBatch.countDown();
+                    endBatch.await();
+                } finally {
+                    store.endBatch();
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        batchThread.start();
+        inBatch.await();
+
+        // changes of other threads are published while the batch is open
+        store.add(container("b"));
+        assertEquals(names(store.snapshot()), names("a", "b"));
+        store.remove("a");
+        assertEquals(names(store.snapshot()), names("b"));
+        assertFalse(names(store.snapshot()).contains("t1"));
+
+        endBatch.countDown();
+        batchThread.join();
+        assertNull(failure.get());
+
+        List<String> names = names(store.snapshot());
+        assertEquals(names.size(), 3);
+        assertTrue(names.containsAll(names("b", "t1", "t2")));
+    }
+
+    private static List<String> names(List<MetricsContainer> containers) {
+        List<String> names = new ArrayList<>();
+        for (MetricsContainer container : containers)
+            names.add(container.name);
+        names.sort(null);
+        return names;
+    }
+
+    private static List<String> names(String... names) {
+        List<String> list = new ArrayList<>();
+        for (String name : names)
+            list.add(name);
+        return list;
+    }
+
+    private static MetricsContainer container(String name) {
+        return new MetricsContainer(name, "from codahale", Prometheus.MetricType.GAUGE);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.MetricRegistry;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.prometheus.client.Prometheus;
+import org.testng.annotations.Test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ExporterMetricsTest {
+    @Test
+    public void testScrapes() {
+        List<MetricsContainer> containers = new ArrayList<>();
+        ExporterMetrics exporterMetrics = new ExporterMetrics(new ExporterConfig(), () -> containers);
+        exporterMetrics.registerMetrics(containers::add);
+
+        exporterMetrics.startScrape(ResponseFormat.TEXT, ZlibWrapper.GZIP).complete(1000L);
+        exporterMetrics.startScrape(ResponseFormat.TEXT, ZlibWrapper.GZIP).complete(234L);
+        exporterMetrics.startScrape(ResponseFormat.PROTOBUF, null).complete(10L);
+        exporterMetrics.registered(5000L);
+        exporterMetrics.unregistered(3000L);
+        exporterMetrics.unregistered(3000L);
+
+        Map<String, Long> values = values(containers);
+        assertEquals(values.get("PrometheusExporter_ScrapeMillis_count/text/gzip"), Long.valueOf(2L));
+        assertEquals(values.get("PrometheusExporter_ScrapeMillis_bucket/text/gzip/+Inf"), Long.valueOf(2L));
+        assertEquals(values.get("PrometheusExporter_ScrapeMillis_count/text/identity"), Long.valueOf(0L));
+        assertEquals(values.get("PrometheusExporter_ScrapeMillis_count/protobuf/identity"), Long.valueOf(1L));
+        assertEquals(values.get("PrometheusExporter_ResponseBytes/text/gzip"), Long.valueOf(1234L));
+        assertEquals(values.get("PrometheusExporter_ResponseBytes/protobuf/identity"), Long.valueOf(10L));
+        assertEquals(values.get("PrometheusExporter_Registrations/PrometheusExporter_Registrations_Added"), Long.valueOf(1L));
+        assertEquals(values.get("PrometheusExporter_Registrations/PrometheusExporter_Registrations_Removed"), Long.valueOf(2L));
+        assertEquals(values.get("PrometheusExporter_RegistrationMicros/PrometheusExporter_RegistrationMicros_Removed"), Long.valueOf(6L));
+    }
+
+    @Test
+    public void testSlowestFamilies() {
+        ExporterConfig config = new ExporterConfig();
+        config.slowestFamilies = 2;
+        List<MetricsContainer> containers = new ArrayList<>();
+        for (String name : new String[]{"a", "b", "c", "d"})
+            containers.add(new MetricsContainer(name, "test", Prometheus.MetricType.GAUGE));
+        containers.get(0).sampledCollectNanos = 3_000_000L;
+        containers.get(1).sampledCollectNanos = 1_000_000L;
+        containers.get(2).sampledCollectNanos = 5_000_000L;
+
+        List<MetricsContainer> registered = new ArrayList<>();
+        new ExporterMetrics(config, () -> containers).registerMetrics(registered::add);
+        MetricsContainer slowest = registered.stream()
+                .filter(c -> c.name.equals("PrometheusExporter_SlowestFamilies"))
+                .findFirst().get();
+
+        List<String> families = new ArrayList<>();
+        List<Double> seconds = new ArrayList<>();
+        for (MetricInfo metric : slowest.getMetrics()) {
+            families.add(metric.labels.value(0));
+            seconds.add(((DoubleValueGauge) metric.metric).getDouble());
+        }
+        assertEquals(families, Arrays.asList("c", "a"));
+        assertEquals(seconds, Arrays.asList(0.005d, 0.003d));
+        assertEquals(slowest.size(), 2);
+    }
+
+    @Test
+    public void testHttp() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("counter").inc();
+
+        ExporterConfig config = new ExporterConfig();
+        config.httpPort = 8894;
+        config.familyTimingSampleInterval = 1;
+        PrometheusMetricsExporter exporter = new PrometheusMetricsExporter(registry, config);
+        try {
+            URL url = new URL("http://127.0.0.1:8894/metrics");
+            PrometheusMetricsExporterTest.scrape(url, null);
+            String text = PrometheusMetricsExporterTest.scrape(url, null);
+
+            assertTrue(text.contains("PrometheusExporter_ScrapeMillis_count{format=text,encoding=identity,} 1.0"), text);
+            assertTrue(text.contains("PrometheusExporter_Registrations{type=added,} 1.0"), text);
+            assertTrue(text.contains("PrometheusExporter_SlowestFamilies{family="), text);
+            assertTrue(text.contains("PrometheusExporter_Families "), text);
+            assertTrue(!text.contains("PrometheusExporter_ResponseBytes{format=text,encoding=identity,} 0.0"), text);
+        } finally {
+            exporter.stop();
+        }
+    }
+
+    /**
+     * The values of all counters and codahale {@link Counting}s by family and source name.
+     */
+    static Map<String, Long> values(List<MetricsContainer> containers) {
+        Map<String, Long> values = new HashMap<>();
+        for (MetricsContainer container : containers) {
+            for (MetricInfo metric : container.getMetrics()) {
+                if (metric.metric instanceof Counting)
+                    values.put(container.name + '/' + metric.sourceName, ((Counting) metric.metric).getCount());
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class GcPauseMetricsTest {
+    @Test
+    public void testHistogram() {
+        GcPauseMetrics gcPauses = new GcPauseMetrics();
+        List<MetricsContainer> containers = new ArrayList<>();
+        gcPauses.registerMetrics(containers::add);
+        gcPauses.close();
+
+        for (long millis : new long[]{0, 1, 3, 7, 100, 20000})
+            gcPauses.record("Test GC", "Allocation Failure", millis);
+
+        Map<String, Long> values = ExporterMetricsTest.values(containers);
+        assertEquals(values.get("JVM_GC_PauseMillis_bucket/Test GC/Allocation Failure/1"), Long.valueOf(2L));
+        assertEquals(values.get("JVM_GC_PauseMillis_bucket/Test GC/Allocation Failure/5"), Long.valueOf(3L));
+        assertEquals(values.get("JVM_GC_PauseMillis_bucket/Test GC/Allocation Failure/10"), Long.valueOf(4L));
+        assertEquals(values.get("JVM_GC_PauseMillis_bucket/Test GC/Allocation Failure/100"), Long.valueOf(5L));
+        assertEquals(values.get("JVM_GC_PauseMillis_bucket/Test GC/Allocation Failure/10000"), Long.valueOf(5L));
+        assertEquals(values.get("JVM_GC_PauseMillis_bucket/Test GC/Allocation Failure/+Inf"), Long.valueOf(6L));
+        assertEquals(values.get("JVM_GC_PauseMillis_sum/Test GC/Allocation Failure"), Long.valueOf(20111L));
+        assertEquals(values.get("JVM_GC_PauseMillis_count/Test GC/Allocation Failure"), Long.valueOf(6L));
+    }
+
+    @Test
+    public void testStopTheWorld() {
+        assertTrue(GcPauseMetrics.isPause("G1 Young Generation", "end of minor GC"));
+        assertTrue(GcPauseMetrics.isPause("G1 Old Generation", "end of major GC"));
+        assertTrue(GcPauseMetrics.isPause("PS MarkSweep", "end of major GC"));
+        assertTrue(GcPauseMetrics.isPause("ZGC Pauses", "end of GC pause"));
+        assertFalse(GcPauseMetrics.isPause("G1 Concurrent GC", "end of concurrent GC pause"));
+        assertFalse(GcPauseMetrics.isPause("ConcurrentMarkSweep", "end of major GC"));
+        assertFalse(GcPauseMetrics.isPause("ZGC Cycles", "end of GC cycle"));
+        assertFalse(GcPauseMetrics.isPause("Shenandoah Cycles", "end of GC cycle"));
+
+        assertTrue(GcPauseMetrics.isOldGeneration("G1 Old Gen"));
+        assertTrue(GcPauseMetrics.isOldGeneration("Tenured Gen"));
+        assertFalse(GcPauseMetrics.isOldGeneration("G1 Survivor Space"));
+        assertFalse(GcPauseMetrics.isOldGeneration("PS Eden Space"));
+    }
+
+    @Test
+    public void testNotifications() throws Exception {
+        GcPauseMetrics gcPauses = new GcPauseMetrics();
+        List<MetricsContainer> containers = new ArrayList<>();
+        gcPauses.registerMetrics(containers::add);
+        try {
+            System.gc();
+            long deadline = System.currentTimeMillis() + 5000L;
+            long collections = 0L;
+            while (collections == 0L && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+                for (Map.Entry<String, Long> e : ExporterMetricsTest.values(containers).entrySet()) {
+                    if (e.getKey().startsWith("JVM_GC_PauseMillis_count/") && e.getKey().endsWith("/System.gc()"))
+                        collections += e.getValue();
+                }
+            }
+            assertTrue(collections > 0L);
+        } finally {
+            gcPauses.close();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+/**
+ * Compares the time to map the metric names of a Cassandra node with 2 x 2000 tables using
+ * {@code cassandra-mappings.yaml} with {@link MetricMappings} and with the previous linear scan.
+ * Not run as part of the build, run it explicitly via
+ * {@code mvn test -Dtest=MetricMappingsDeveloperTest}.
+ */
+public class MetricMappingsDeveloperTest {
+    private static final int ROUNDS = 10;
+
+    @Test
+    public void benchmark() throws Exception {
+        ExporterConfig config = MetricMappingsTest.cassandraConfig();
+        MetricMappings mappings = new MetricMappings(config.exclusions, config.mappings);
+        List<String> names = MetricMappingsTest.cassandraMetricNames(2000);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long legacy = -System.nanoTime();
+            int legacyMatches = 0;
+            for (String name : names) {
+                if (MetricMappingsTest.legacyMapping(config, name) != null)
+                    legacyMatches++;
+            }
+            legacy += System.nanoTime();
+
+            long indexed = -System.nanoTime();
+            int indexedMatches = 0;
+            for (String name : names) {
+                if (mappings.isExcluded(name))
+                    continue;
+                MetricMappings.Match match = mappings.match(name);
+                if (match != null) {
+                    match.name();
+                    match.labels();
+                    indexedMatches++;
+                }
+            }
+            indexed += System.nanoTime();
+
+            System.out.printf("round %d: %d names, linear scan %d ms (%d matches), indexed %d ms (%d matches)%n",
+                    round, names.size(), legacy / 1_000_000, legacyMatches, indexed / 1_000_000, indexedMatches);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class MetricMappingsTest {
+    private static final String[] TABLE_METRICS = {
+            "AllMemtablesHeapSize", "BloomFilterDiskSpaceUsed", "BloomFilterFalsePositives", "BloomFilterFalseRatio",
+            "CasCommitLatency", "CasProposeLatency", "ColUpdateTimeDeltaHistogram", "CompressionRatio",
+            "CoordinatorReadLatency", "CoordinatorScanLatency", "EstimatedColumnCountHistogram",
+            "EstimatedPartitionCount", "EstimatedPartitionSizeHistogram", "KeyCacheHitRate", "LiveDiskSpaceUsed",
+            "LiveSSTableCount", "LiveScannedHistogram", "MaxPartitionSize", "MeanPartitionSize",
+            "MemtableColumnsCount", "MemtableLiveDataSize", "MemtableOnHeapSize", "MemtableSwitchCount",
+            "MinPartitionSize", "PendingCompactions", "PendingFlushes", "RangeLatency", "ReadLatency",
+            "RowCacheHit", "RowCacheMiss", "SSTablesPerReadHistogram", "SnapshotsSize", "SpeculativeRetries",
+            "TombstoneScannedHistogram", "TotalDiskSpaceUsed", "TrueSnapshotsSize", "WriteLatency"
+    };
+
+    @Test
+    public void testLiteralPrefix() {
+        assertEquals(MetricMappings.literalPrefix("org\\.apache\\.cassandra\\.metrics\\.Table\\.([^.]+)\\.all$"), "org.apache.cassandra.metrics.Table.");
+        assertEquals(MetricMappings.literalPrefix("^foo\\.bar"), "foo.bar");
+        assertEquals(MetricMappings.literalPrefix("foo\\.bar?"), "foo.ba");
+        assertEquals(MetricMappings.literalPrefix("foo\\.bar+"), "foo.bar");
+        assertEquals(MetricMappings.literalPrefix("foo\\.bar{2}"), "foo.ba");
+        assertEquals(MetricMappings.literalPrefix("foo\\.\\d+"), "foo.");
+        assertEquals(MetricMappings.literalPrefix("foo\\.bar|baz"), "");
+        assertEquals(MetricMappings.literalPrefix("(?i)foo"), "");
+    }
+
+    @Test
+    public void testTemplates() {
+        Matcher matcher = Pattern.compile("(a)(b)(?<name>c)(d)?(e)(f)(g)(h)(i)(j)(k)").matcher("abcefghijk");
+        for (String replacement : new String[]{"x", "$1", "x$2y", "$11", "$12", "${name}-$1", "\\$1", "$4", ""}) {
+            assertEquals(matcher.matches(), true);
+            String expanded = MetricMappings.Template.compile(replacement, matcher.groupCount()).expand(matcher);
+            assertEquals(expanded, matcher.replaceAll(replacement), replacement);
+        }
+    }
+
+    @Test
+    public void testCassandraMappings() throws Exception {
+        ExporterConfig config = cassandraConfig();
+        MetricMappings mappings = new MetricMappings(config.exclusions, config.mappings);
+
+        for (String name : cassandraMetricNames(20)) {
+            String[] expected = legacyMapping(config, name);
+            if (expected == null) {
+                if (!mappings.isExcluded(name))
+                    assertNull(mappings.match(name), name);
+                continue;
+            }
+            MetricMappings.Match match = mappings.match(name);
+            List<String> actual = new ArrayList<>();
+            actual.add(match.name());
+            for (String[] label : match.labels()) {
+                actual.add(label[0]);
+                actual.add(label[1]);
+            }
+            assertEquals(actual, Arrays.asList(expected), name);
+        }
+    }
+
+    static ExporterConfig cassandraConfig() throws Exception {
+        return PrometheusMetricsExporterBuilder.loadConfig(new File("mappings/cassandra-mappings.yaml").toURI().toURL());
+    }
+
+    /**
+     * Metric names as registered by a Cassandra node with {@code tables} tables in each of two keyspaces.
+     */
+    static List<String> cassandraMetricNames(int tables) {
+        List<String> names = new ArrayList<>();
+        String prefix = "org.apache.cassandra.metrics.";
+        for (String ks : new String[]{"system", "ks"}) {
+            for (String metric : TABLE_METRICS) {
+                names.add(prefix + "keyspace." + metric + '.' + ks);
+                names.add(prefix + "Table." + metric + '.' + ks);
+                for (int t = 0; t < tables; t++)
+                    names.add(prefix + "Table." + metric + '.' + ks + ".table" + t);
+            }
+        }
+        for (String metric : TABLE_METRICS)
+            names.add(prefix + "Table." + metric + ".all");
+        for (String pool : new String[]{"MutationStage", "ReadStage", "CompactionExecutor", "MemtableFlushWriter"})
+            for (String metric : new String[]{"ActiveTasks", "PendingTasks", "CompletedTasks", "TotalBlockedTasks"})
+                names.add(prefix + "ThreadPools." + metric + ".request." + pool);
+        for (String cache : new String[]{"KeyCache", "RowCache", "CounterCache"})
+            for (String metric : new String[]{"HitRate", "Hits", "Requests", "Size", "Entries"})
+                names.add(prefix + "Cache." + metric + '.' + cache);
+        for (String endpoint : new String[]{"10.0.0.1", "10.0.0.2", "10.0.0.3"}) {
+            names.add(prefix + "Connection.Timeouts." + endpoint);
+            names.add(prefix + "Connection.LargeMessagePendingTasks." + endpoint);
+            names.add(prefix + "HintedHandOffManager.Hints_created-" + endpoint);
+        }
+        names.add(prefix + "Connection.TotalTimeouts");
+        for (String scope : new String[]{"Read", "Write", "RangeSlice", "CASRead"})
+            for (String metric : new String[]{"Latency", "Timeouts", "Unavailables", "Failures"})
+                names.add(prefix + "ClientRequest." + metric + '.' + scope);
+        for (String verb : new String[]{"MUTATION", "READ", "PAGED_RANGE"})
+            names.add(prefix + "DroppedMessage.Dropped." + verb);
+        for (String metric : new String[]{"Compaction.PendingTasks", "CommitLog.PendingTasks", "Storage.Load",
+                "BufferPool.Size", "CQL.PreparedStatementsCount", "Client.connectedNativeClients", "ReadRepair.Attempted",
+                "DirectMemory.Used", "Client.RequestsInFlight"})
+            names.add(prefix + metric);
+        names.add("com.example.Unmapped.Metric");
+        return names;
+    }
+
+    /**
+     * The mapping engine as it was before {@link MetricMappings}: scans all exclusions and mappings
+     * and applies the templates via {@link Matcher#replaceAll(String)}.
+     *
+     * @return mapped name followed by label names and values or {@code null}
+     */
+    static String[] legacyMapping(ExporterConfig config, String codahaleName) {
+        for (ExporterConfig.Exclusion exclusion : config.exclusions) {
+            if (exclusion.regex.matcher(codahaleName).matches()) {
+                return null;
+            }
+        }
+        for (ExporterConfig.Mapping mapping : config.mappings) {
+            Matcher matcher = mapping.regex.matcher(codahaleName);
+            if (matcher.matches()) {
+                String[] result = new String[1 + mapping.labels.size() * 2];
+                result[0] = matcher.replaceAll(mapping.name);
+                for (int i = 0; i < mapping.labels.size(); i++) {
+                    ExporterConfig.Label label = mapping.labels.get(i);
+                    result[1 + i * 2] = matcher.replaceAll(label.label);
+                    result[2 + i * 2] = matcher.replaceAll(label.value);
+                }
+                return result;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.codahale.metrics.Counter;
+import io.prometheus.client.Prometheus;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Registration churn of 50k series in one metric family: registers all series, drops and re-creates
+ * every tenth series (like {@code DROP TABLE} / {@code CREATE TABLE}) with a scrape in between and
+ * finally removes all series. The previous copy-on-write list is measured for comparison.
+ * Not run as part of the build, run it explicitly via
+ * {@code mvn test -Dtest=MetricsContainerDeveloperTest}.
+ */
+public class MetricsContainerDeveloperTest {
+    private static final int SERIES = 50_000;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void benchmark() {
+        Counter counter = new Counter();
+        String[] names = new String[SERIES];
+        for (int i = 0; i < SERIES; i++)
+            names[i] = "org.apache.cassandra.metrics.Table.ReadLatency.ks.table" + i;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long indexed = -System.nanoTime();
+            MetricsContainer container = new MetricsContainer("Table_ReadLatency", "from codahale", Prometheus.MetricType.COUNTER);
+            for (String name : names)
+                container.addMetric(name, counter, "table", name);
+            for (int i = 0; i < SERIES; i += 10) {
+                container.removeMetric(names[i]);
+                container.addMetric(names[i], counter, "table", names[i]);
+                if (i % 1000 == 0)
+                    container.getMetrics().size();
+            }
+            for (String name : names)
+                container.removeMetric(name);
+            indexed += System.nanoTime();
+
+            long copyOnWrite = -System.nanoTime();
+            CopyOnWriteSeries legacy = new CopyOnWriteSeries(container);
+            for (String name : names)
+                legacy.addMetric(name, counter, "table", name);
+            for (int i = 0; i < SERIES; i += 10) {
+                legacy.removeMetric(names[i]);
+                legacy.addMetric(names[i], counter, "table", names[i]);
+                if (i % 1000 == 0)
+                    legacy.metrics.size();
+            }
+            for (String name : names)
+                legacy.removeMetric(name);
+            copyOnWrite += System.nanoTime();
+
+            System.out.printf("round %d: %d series, indexed %d ms, copy-on-write %d ms%n",
+                    round, SERIES, indexed / 1_000_000, copyOnWrite / 1_000_000);
+        }
+    }
+
+    /**
+     * The series list of {@link MetricsContainer} as it was before it got indexed.
+     */
+    private static final class CopyOnWriteSeries {
+        private final MetricsContainer container;
+        private volatile List<MetricInfo> metrics = new ArrayList<>();
+
+        CopyOnWriteSeries(MetricsContainer container) {
+            this.container = container;
+        }
+
+        void addMetric(String s, Counter metric, String... labels) {
+            List<MetricInfo> copy = new ArrayList<>(metrics);
+            copy.add(new MetricInfo<>(s, metric, labels));
+            metrics = copy;
+        }
+
+        boolean removeMetric(String codahaleName) {
+            for (int i = 0; i < metrics.size(); i++) {
+                if (metrics.get(i).sourceName.equals(codahaleName)) {
+                    List<MetricInfo> copy = new ArrayList<>(metrics);
+                    copy.remove(i);
+                    metrics = copy;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
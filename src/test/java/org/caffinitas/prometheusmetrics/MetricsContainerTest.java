@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.codahale.metrics.Counter;
+import io.prometheus.client.Prometheus;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class MetricsContainerTest {
+    @Test
+    public void testSeries() {
+        MetricsContainer container = new MetricsContainer("Table_ReadLatency", "from codahale", Prometheus.MetricType.COUNTER);
+        for (int i = 0; i < 100; i++)
+            container.addMetric("t" + i, new Counter(), "table", "t" + i);
+
+        List<MetricInfo> snapshot = container.getMetrics();
+        assertSame(container.getMetrics(), snapshot);
+        assertEquals(snapshot.size(), 100);
+        for (int i = 0; i < 100; i++)
+            assertEquals(snapshot.get(i).sourceName, "t" + i);
+
+        assertTrue(container.removeMetric("t42"));
+        assertFalse(container.removeMetric("t42"));
+        assertEquals(snapshot.size(), 100);
+        assertEquals(container.getMetrics().size(), 99);
+        assertEquals(container.getMetrics().get(42).sourceName, "t43");
+
+        container.addMetric("t42", new Counter(), "table", "t42");
+        assertEquals(container.getMetrics().size(), 100);
+        assertEquals(container.getMetrics().get(0).sourceName, "t0");
+        assertEquals(container.getMetrics().get(99).sourceName, "t42");
+    }
+
+    @Test
+    public void testDuplicateSeries() {
+        MetricsContainer container = new MetricsContainer("Table_ReadLatency", "from codahale", Prometheus.MetricType.COUNTER);
+        Counter counter = new Counter();
+        container.addMetric("t0", counter, "table", "t0");
+        assertTrue(container.containsMetric("t0"));
+        try {
+            container.addMetric("t0", new Counter(), "table", "t0");
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        assertEquals(container.getMetrics().size(), 1);
+        assertSame(container.getMetrics().get(0).metric, counter);
+    }
+
+    @Test
+    public void testLabelSymbols() {
+        LabelSet first = LabelSet.of("keyspace", new String("ks"), "table", "t1");
+        LabelSet second = LabelSet.of("keyspace", new String("ks"), "table", "t2");
+        assertSame(LabelSet.of("keyspace", "ks", "table", "t1"), first);
+        assertSame(second.name(0), first.name(0));
+        assertSame(second.value(0), first.value(0));
+    }
+
+    @Test
+    public void testSnapshotContainer() {
+        AtomicLong reads = new AtomicLong();
+        SnapshotContainer<long[]> container = new SnapshotContainer<>("JVM_Test", "from Java MXBeans",
+                () -> new long[]{reads.incrementAndGet(), -reads.get()});
+        container.addValue("first", v -> v[0], "type", "first")
+                .addValue("second", v -> v[1], "type", "second")
+                .addReadout("delta", v -> v[0] * 10, "type", "delta");
+        assertEquals(reads.get(), 0L);
+
+        for (int scrape = 1; scrape < 5; scrape++) {
+            List<MetricInfo> series = container.getMetrics();
+            assertEquals(reads.get(), scrape);
+            assertEquals(value(series, 0), scrape);
+            assertEquals(value(series, 1), -scrape);
+            assertEquals(value(series, 2), 10L);
+        }
+    }
+
+    @Test
+    public void testSnapshotContainerConcurrentScrapes() {
+        AtomicLong reads = new AtomicLong();
+        SnapshotContainer<long[]> container = new SnapshotContainer<>("JVM_Test", "from Java MXBeans",
+                () -> new long[]{reads.incrementAndGet(), -reads.get()});
+        container.addValue("first", v -> v[0], "type", "first")
+                .addValue("second", v -> v[1], "type", "second");
+
+        // scrape B fetches the series while scrape A is still encoding
+        List<MetricInfo> a = container.getMetrics();
+        long aFirst = value(a, 0);
+        List<MetricInfo> b = container.getMetrics();
+        assertEquals(value(a, 1), -aFirst);
+        assertEquals(value(b, 1), -value(b, 0));
+        assertEquals(value(b, 0), aFirst + 1);
+    }
+
+    private static long value(List<MetricInfo> series, int index) {
+        return ((Readout) series).longValue(index);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class ProcMetricsTest {
+    private final List<Path> tempDirs = new ArrayList<>();
+
+    @AfterMethod
+    public void deleteTempDirs() throws IOException {
+        for (Path dir : tempDirs) {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        tempDirs.clear();
+    }
+
+    @Test
+    public void testCgroupV2() throws Exception {
+        Path root = fixture("v2");
+        ProcMetrics procMetrics = new ProcMetrics(root.resolve("proc"), root.resolve("sys/fs/cgroup"));
+        List<MetricsContainer> containers = new ArrayList<>();
+        procMetrics.registerMetrics(containers::add);
+        try {
+            Map<String, Double> values = values(containers);
+            assertEquals(values.get("JVM_Process_Status/VmRSS"), 8000000d * 1024d);
+            assertEquals(values.get("JVM_Process_Status/Threads"), 512d);
+            assertEquals(values.get("JVM_Process_SmapsRollup/Private_Dirty"), 7900000d * 1024d);
+            assertEquals(values.get("JVM_Process_IO/write_bytes"), 8192d);
+            assertEquals(values.get("JVM_Cgroup_Memory/current"), 17179869184d);
+            assertEquals(values.get("JVM_Cgroup_Memory/max"), 34359738368d);
+            assertEquals(values.get("JVM_Cgroup_MemoryStat/anon"), 15000000000d);
+            assertEquals(values.get("JVM_Cgroup_Cpu/nr_throttled"), 25d);
+            assertEquals(values.get("JVM_Cgroup_CpuLimit/"), 4d);
+            assertFalse(values.containsKey("JVM_Process_Status/Name"));
+
+            // files are re-read on each scrape
+            Files.write(root.resolve("sys/fs/cgroup/system.slice/cassandra.service/memory.current"), "42\n".getBytes());
+            Files.write(root.resolve("sys/fs/cgroup/system.slice/cassandra.service/memory.max"), "max\n".getBytes());
+            values = values(containers);
+            assertEquals(values.get("JVM_Cgroup_Memory/current"), 42d);
+            assertEquals(values.get("JVM_Cgroup_Memory/max"), Double.POSITIVE_INFINITY);
+
+            // a file that vanishes keeps its last values
+            Files.delete(root.resolve("sys/fs/cgroup/system.slice/cassandra.service/cpu.stat"));
+            assertEquals(values(containers).get("JVM_Cgroup_Cpu/nr_throttled"), 25d);
+        } finally {
+            procMetrics.close();
+        }
+    }
+
+    @Test
+    public void testCgroupV1() throws Exception {
+        Path root = fixture("v1");
+        ProcMetrics procMetrics = new ProcMetrics(root.resolve("proc"), root.resolve("sys/fs/cgroup"));
+        List<MetricsContainer> containers = new ArrayList<>();
+        procMetrics.registerMetrics(containers::add);
+        try {
+            Map<String, Double> values = values(containers);
+            assertEquals(values.get("JVM_Process_Status/Threads"), 64d);
+            assertFalse(values.containsKey("JVM_Process_Status/VmSwap"));
+            assertEquals(values.get("JVM_Process_IO/wchar"), 2d);
+            assertEquals(values.get("JVM_Cgroup_Memory/current"), 1073741824d);
+            assertEquals(values.get("JVM_Cgroup_MemoryStat/rss"), 943718400d);
+            assertEquals(values.get("JVM_Cgroup_CpuLimit/"), Double.POSITIVE_INFINITY);
+            for (MetricsContainer container : containers)
+                assertFalse(container.name.equals("JVM_Process_SmapsRollup"));
+        } finally {
+            procMetrics.close();
+        }
+    }
+
+    @Test
+    public void testMissing() throws Exception {
+        Path root = tempDir();
+        ProcMetrics procMetrics = new ProcMetrics(root.resolve("proc"), root.resolve("sys/fs/cgroup"));
+        List<MetricsContainer> containers = new ArrayList<>();
+        procMetrics.registerMetrics(containers::add);
+        procMetrics.close();
+        for (MetricsContainer container : containers)
+            assertTrue(container.name.startsWith("JVM_BufferPool_"), container.name);
+    }
+
+    private static Map<String, Double> values(List<MetricsContainer> containers) {
+        Map<String, Double> values = new HashMap<>();
+        for (MetricsContainer container : containers) {
+            List<MetricInfo> series = container.getMetrics();
+            for (int i = 0; i < series.size(); i++) {
+                MetricInfo metric = series.get(i);
+                String type = metric.labels.size() > 0 ? metric.labels.value(0) : "";
+                double value;
+                if (metric.reader == MetricInfo.ValueReader.READOUT_LONG)
+                    value = ((Readout) series).longValue(i);
+                else if (metric.reader == MetricInfo.ValueReader.READOUT_DOUBLE)
+                    value = ((Readout) series).doubleValue(i);
+                else
+                    value = ((LongValueGauge) metric.metric).getLong();
+                values.put(container.name + '/' + type, value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Copy of a fixture directory standing in for {@code /proc} and {@code /sys/fs/cgroup}.
+     */
+    private Path fixture(String name) throws Exception {
+        Path source = Paths.get(ProcMetricsTest.class.getResource("/procfs/" + name).toURI());
+        Path target = tempDir();
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.copy(file, target.resolve(source.relativize(file).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return target;
+    }
+
+    private Path tempDir() throws IOException {
+        Path dir = Files.createTempDirectory("procfs");
+        tempDirs.add(dir);
+        return dir;
+    }
+}
@@ -19,6 +19,8 @@ package org.caffinitas.prometheusmetrics;
 
 import com.beust.jcommander.internal.Maps;
 import com.codahale.metrics.*;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
 import io.prometheus.client.Prometheus;
 import org.testng.annotations.Test;
 
@@ -27,9 +29,15 @@ import java.io.File;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotEquals;
 import static org.testng.Assert.assertTrue;
 
@@ -124,4 +132,204 @@ public class PrometheusMetricsExporterTest {
             exporter.stop();
         }
     }
+
+    @Test
+    public void testScrapeCache() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        Counter counter = registry.counter("counter");
+
+        PrometheusMetricsExporter exporter = PrometheusMetricsExporterBuilder.newBuilder()
+                .registry(registry)
+                .httpPort(8898)
+                .scrapeCacheMillis(60000)
+                .build();
+
+        try {
+            URL url = new URL("http://127.0.0.1:8898/metrics");
+
+            String first = scrape(url, null);
+            counter.inc();
+            assertEquals(scrape(url, null), first);
+            assertTrue(first.contains("counter 0.0\n"));
+
+            URLConnection urlConn = url.openConnection();
+            urlConn.addRequestProperty("Accept-Encoding", "gzip");
+            try (InputStream is = new GZIPInputStream(urlConn.getInputStream())) {
+                assertEquals(urlConn.getHeaderField("Content-Encoding"), "gzip");
+                String gzipped = read(is);
+                assertTrue(gzipped.contains("counter 1.0\n"));
+                assertTrue(gzipped.contains("PrometheusExporter_ScrapeCache{result=hit,} 1.0\n"));
+            }
+        } finally {
+            exporter.stop();
+        }
+    }
+
+    @Test
+    public void testLargeResponse() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        for (int i = 0; i < 20000; i++)
+            registry.counter("counter.number" + i).inc(i);
+
+        PrometheusMetricsExporter exporter = PrometheusMetricsExporterBuilder.newBuilder()
+                .registry(registry)
+                .httpPort(8897)
+                .build();
+
+        try {
+            URL url = new URL("http://127.0.0.1:8897/metrics");
+
+            String text = scrape(url, null);
+            Set<String> lines = new HashSet<>(Arrays.asList(text.split("\n")));
+            for (int i = 0; i < 20000; i++)
+                assertTrue(lines.contains("counter_number" + i + " " + i + ".0"), "counter_number" + i);
+
+            URLConnection urlConn = url.openConnection();
+            urlConn.addRequestProperty("Accept-Encoding", "gzip");
+            try (InputStream is = new GZIPInputStream(urlConn.getInputStream())) {
+                assertEquals(urlConn.getHeaderField("Content-Encoding"), "gzip");
+                // the exporter's own metrics differ between the scrapes
+                assertEquals(withoutExporterMetrics(read(is)), withoutExporterMetrics(text));
+            }
+        } finally {
+            exporter.stop();
+        }
+    }
+
+    @Test
+    public void testScrapeDeadline() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        Gauge<Long> slow = () -> {
+            try {
+                Thread.sleep(700L);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return 1L;
+        };
+        registry.register("slow1", slow);
+        registry.register("slow2", slow);
+
+        PrometheusMetricsExporter exporter = PrometheusMetricsExporterBuilder.newBuilder()
+                .registry(registry)
+                .httpPort(8896)
+                .build();
+
+        try {
+            URL url = new URL("http://127.0.0.1:8896/metrics");
+
+            String text = scrape(url, null);
+            assertTrue(text.contains("\nslow1 1.0\n"));
+            assertTrue(text.contains("\nslow2 1.0\n"));
+            assertTrue(text.contains("\nPrometheusExporter_DroppedFamilies 0.0\n"));
+
+            URLConnection urlConn = url.openConnection();
+            urlConn.addRequestProperty(ScrapeDeadline.TIMEOUT_HEADER, "1");
+            try (InputStream is = urlConn.getInputStream()) {
+                text = read(is);
+            }
+            assertTrue(text.contains("\nslow1 1.0\n") != text.contains("\nslow2 1.0\n"));
+            assertTrue(!text.contains("\nPrometheusExporter_DroppedFamilies 0.0\n"));
+            assertTrue(text.contains("\nPrometheusExporter_DroppedFamilies "));
+        } finally {
+            exporter.stop();
+        }
+    }
+
+    @Test
+    public void testSampledGauge() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        AtomicInteger calls = new AtomicInteger();
+        registry.register("org.apache.cassandra.metrics.Table.EstimatedPartitionCount.ks.tbl", (Gauge<Integer>) calls::incrementAndGet);
+
+        PrometheusMetricsExporter exporter = PrometheusMetricsExporterBuilder.newBuilder()
+                .registry(registry)
+                .httpPort(8895)
+                .config(PrometheusMetricsExporterTest.class.getResource("/sampled-mappings.yaml"))
+                .build();
+
+        try {
+            URL url = new URL("http://127.0.0.1:8895/metrics");
+
+            // the first sample is taken within the refresh interval
+            String series = "\nTable_EstimatedPartitionCount{keyspace=ks,table=ks.tbl,} 1.0\n";
+            for (int i = 0; !scrape(url, null).contains(series) && i < 100; i++)
+                Thread.sleep(50L);
+
+            String text = scrape(url, null);
+            assertTrue(text.contains(series), text);
+            assertEquals(calls.get(), 1);
+        } finally {
+            exporter.stop();
+        }
+    }
+
+    @Test
+    public void testJvmSeries() throws Exception {
+        PrometheusMetricsExporter exporter = PrometheusMetricsExporterBuilder.newBuilder()
+                .registry(new MetricRegistry())
+                .httpPort(8891)
+                .includeJvm(true)
+                .build();
+
+        try {
+            String text = scrape(new URL("http://127.0.0.1:8891/metrics"), null);
+            assertTrue(text.contains("\nJVM_OS_ProcessCpuTime{aggregation=none,} "), text);
+            assertTrue(text.contains("\nJVM_OS_ProcessCpuTime{aggregation=sum,} "), text);
+            assertTrue(text.contains("\nJVM_HeapMemoryUsage{type=committed,} "), text);
+            assertTrue(text.contains("\nJVM_HeapMemoryUsage{type=used,} "), text);
+        } finally {
+            exporter.stop();
+        }
+    }
+
+    @Test
+    public void testSharedEventLoopGroup() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("counter").inc(3);
+
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        try {
+            PrometheusMetricsExporter exporter = PrometheusMetricsExporterBuilder.newBuilder()
+                    .registry(registry)
+                    .httpPort(8892)
+                    .eventLoopGroup(group)
+                    .build();
+            try {
+                String text = scrape(new URL("http://127.0.0.1:8892/metrics"), null);
+                assertTrue(text.contains("counter 3.0\n"), text);
+            } finally {
+                exporter.stop();
+            }
+            assertFalse(group.isShuttingDown());
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    static String scrape(URL url, String accept) throws Exception {
+        URLConnection urlConn = url.openConnection();
+        if (accept != null)
+            urlConn.addRequestProperty("Accept", accept);
+        try (InputStream is = urlConn.getInputStream()) {
+            return read(is);
+        }
+    }
+
+    private static String read(InputStream is) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int rd;
+        while ((rd = is.read(buf)) >= 0)
+            out.write(buf, 0, rd);
+        return out.toString("UTF-8");
+    }
+
+    private static String withoutExporterMetrics(String text) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : text.split("\n"))
+            if (!line.contains("PrometheusExporter_"))
+                sb.append(line).append('\n');
+        return sb.toString();
+    }
 }
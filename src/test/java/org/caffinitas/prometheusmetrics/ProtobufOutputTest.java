@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.codahale.metrics.*;
+import io.prometheus.client.Prometheus;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+
+public class ProtobufOutputTest {
+    @Test
+    public void testGauges() throws Exception {
+        MetricsContainer container = new MetricsContainer("gauges", "from codahale", Prometheus.MetricType.GAUGE)
+                .addMetric("g1", (Gauge<Long>) () -> 1L)
+                .addMetric("g2", (Gauge<Double>) () -> 2.5d, "keyspace", "ks", "table", "täble")
+                .addMetric("g3", (Gauge<String>) () -> "not a number", "keyspace", "ks")
+                .addMetric("g4", (Gauge<Boolean>) () -> true, "keyspace", "ks");
+
+        Prometheus.MetricFamily.Builder expected = family(container);
+        expected.addMetricBuilder()
+                .setGauge(Prometheus.Gauge.newBuilder().setValue(1d));
+        labels(expected.addMetricBuilder(), "keyspace", "ks", "table", "täble")
+                .setGauge(Prometheus.Gauge.newBuilder().setValue(2.5d));
+        labels(expected.addMetricBuilder(), "keyspace", "ks")
+                .setGauge(Prometheus.Gauge.newBuilder().setValue(1d));
+
+        assertEncoding(container, expected);
+    }
+
+    @Test
+    public void testPrimitiveGauges() throws Exception {
+        MetricsContainer container = new MetricsContainer("primitive", "from codahale", Prometheus.MetricType.GAUGE)
+                .addMetric("g1", (LongValueGauge) () -> Long.MAX_VALUE)
+                .addMetric("g2", (DoubleValueGauge) () -> 0.25d, "keyspace", "ks");
+
+        Prometheus.MetricFamily.Builder expected = family(container);
+        expected.addMetricBuilder()
+                .setGauge(Prometheus.Gauge.newBuilder().setValue(Long.MAX_VALUE));
+        labels(expected.addMetricBuilder(), "keyspace", "ks")
+                .setGauge(Prometheus.Gauge.newBuilder().setValue(0.25d));
+
+        assertEncoding(container, expected);
+    }
+
+    @Test
+    public void testSampledGauges() throws Exception {
+        SampledGauge<Long> sampled = new SampledGauge<>("g1", () -> 42L, true);
+        sampled.sample();
+        MetricsContainer container = new MetricsContainer("sampled", "from codahale", Prometheus.MetricType.GAUGE)
+                .addMetric("g1", sampled, "keyspace", "ks")
+                .addMetric("g2", new SampledGauge<>("g2", () -> 1L, true));
+
+        Prometheus.MetricFamily.Builder expected = family(container);
+        labels(expected.addMetricBuilder(), "keyspace", "ks")
+                .setGauge(Prometheus.Gauge.newBuilder().setValue(42d))
+                .setTimestampMs(sampled.getSample().timestampMillis);
+
+        assertEncoding(container, expected);
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        Counter counter = new Counter();
+        counter.inc(Integer.MAX_VALUE * 3L);
+        Meter meter = new Meter();
+        meter.mark(42);
+        MetricsContainer container = new MetricsContainer("counters", "from codahale", Prometheus.MetricType.COUNTER)
+                .addMetric("c1", counter, "endpoint", "10.0.0.1")
+                .addMetric("c2", meter, "endpoint", "10.0.0.2");
+
+        Prometheus.MetricFamily.Builder expected = family(container);
+        labels(expected.addMetricBuilder(), "endpoint", "10.0.0.1")
+                .setCounter(Prometheus.Counter.newBuilder().setValue(counter.getCount()));
+        labels(expected.addMetricBuilder(), "endpoint", "10.0.0.2")
+                .setCounter(Prometheus.Counter.newBuilder().setValue(42d));
+
+        assertEncoding(container, expected);
+    }
+
+    @Test
+    public void testSummaries() throws Exception {
+        Histogram histogram = new Histogram(new ExponentiallyDecayingReservoir());
+        for (int i = 0; i < 1000; i++)
+            histogram.update(i);
+        Timer timer = new Timer();
+        timer.update(5, TimeUnit.MILLISECONDS);
+        MetricsContainer container = new MetricsContainer("summaries", "from codahale", Prometheus.MetricType.SUMMARY)
+                .addMetric("h", histogram, "keyspace", "ks")
+                .addMetric("t", timer);
+
+        Prometheus.MetricFamily.Builder expected = family(container);
+        summary(labels(expected.addMetricBuilder(), "keyspace", "ks"), histogram.getSnapshot(), histogram.getCount(), 1d);
+        summary(expected.addMetricBuilder(), timer.getSnapshot(), timer.getCount(), ResponseFormat.FACTOR_TIMER);
+
+        assertEncoding(container, expected);
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        MetricsContainer container = new MetricsContainer("empty", "from codahale", Prometheus.MetricType.GAUGE);
+        assertEquals(encode(container).length, 0);
+    }
+
+    private static void assertEncoding(MetricsContainer container, Prometheus.MetricFamily.Builder expected) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        expected.build().writeDelimitedTo(bytes);
+        assertEquals(encode(container), bytes.toByteArray());
+    }
+
+    private static byte[] encode(MetricsContainer container) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ResponseFormat.ProtobufFormat format = new ResponseFormat.ProtobufFormat();
+        ProtobufOutput output = format.createOutput(bytes);
+        format.writeMetric(container, output);
+        format.finish(output);
+        return bytes.toByteArray();
+    }
+
+    private static Prometheus.MetricFamily.Builder family(MetricsContainer container) {
+        return Prometheus.MetricFamily.newBuilder()
+                .setName(container.name)
+                .setHelp("from dropwizard/codahale " + container.name)
+                .setType(container.type);
+    }
+
+    private static Prometheus.Metric.Builder labels(Prometheus.Metric.Builder builder, String... labels) {
+        for (int i = 0; i < labels.length; i += 2)
+            builder.addLabelBuilder().setName(labels[i]).setValue(labels[i + 1]);
+        return builder;
+    }
+
+    private static void summary(Prometheus.Metric.Builder builder, Snapshot snapshot, long count, double factor) {
+        long sum = 0;
+        for (long i : snapshot.getValues())
+            sum += i;
+        Prometheus.Summary.Builder summary = Prometheus.Summary.newBuilder();
+        summary.addQuantileBuilder().setQuantile(.5d).setValue(snapshot.getMedian() * factor);
+        summary.addQuantileBuilder().setQuantile(.75d).setValue(snapshot.get75thPercentile() * factor);
+        summary.addQuantileBuilder().setQuantile(.95d).setValue(snapshot.get95thPercentile() * factor);
+        summary.addQuantileBuilder().setQuantile(.98d).setValue(snapshot.get98thPercentile() * factor);
+        summary.addQuantileBuilder().setQuantile(.99d).setValue(snapshot.get99thPercentile() * factor);
+        summary.addQuantileBuilder().setQuantile(.999d).setValue(snapshot.get999thPercentile() * factor);
+        summary.setSampleCount(count);
+        summary.setSampleSum(sum * factor);
+        builder.setSummary(summary);
+    }
+}
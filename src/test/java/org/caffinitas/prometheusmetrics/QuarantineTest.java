@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class QuarantineTest {
+    private volatile int mode;
+    private volatile long value;
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Test
+    public void testQuarantine() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        registry.register("guarded", (Gauge<Long>) () -> {
+            calls.incrementAndGet();
+            switch (mode) {
+                case 1:
+                    try {
+                        Thread.sleep(80L);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return value;
+                case 2:
+                    throw new IllegalStateException("broken gauge");
+                default:
+                    return value;
+            }
+        });
+
+        ExporterConfig config = new ExporterConfig();
+        config.httpPort = 8893;
+        config.quarantineBudgetMillis = 50;
+        config.quarantineThreshold = 2;
+        config.quarantineBackoffMillis = 200;
+        PrometheusMetricsExporter exporter = new PrometheusMetricsExporter(registry, config);
+        try {
+            // slow twice - quarantined, the second, buffered collection is the last good value
+            mode = 1;
+            value = 1L;
+            assertTrue(scrape(exporter).contains("guarded 1.0\n"));
+            value = 2L;
+            assertTrue(scrape(exporter).contains("guarded 2.0\n"));
+            assertTrue(scrape(exporter).contains("PrometheusExporter_QuarantinedFamilies{family=guarded,reason=slow,} 1.0\n"));
+
+            // quarantined - served from the last good value without collecting
+            mode = 0;
+            value = 3L;
+            int before = calls.get();
+            assertTrue(scrape(exporter).contains("guarded 2.0\n"));
+            assertEquals(calls.get(), before);
+
+            // probed after the backoff and recovered
+            Thread.sleep(250L);
+            assertTrue(scrape(exporter).contains("guarded 3.0\n"));
+            String text = scrape(exporter);
+            assertTrue(text.contains("guarded 3.0\n"));
+            assertFalse(text.contains("PrometheusExporter_QuarantinedFamilies{"));
+            assertTrue(text.contains("PrometheusExporter_Quarantines 1.0\n"));
+
+            // failing twice - quarantined without a last good value, so skipped
+            mode = 2;
+            scrape(exporter);
+            scrape(exporter);
+            text = scrape(exporter);
+            assertFalse(text.contains("guarded "));
+            assertTrue(text.contains("PrometheusExporter_QuarantinedFamilies{family=guarded,reason=failed,} 1.0\n"));
+
+            // a failed probe doubles the backoff
+            Thread.sleep(250L);
+            before = calls.get();
+            scrape(exporter);
+            assertEquals(calls.get(), before + 1);
+            Thread.sleep(250L);
+            scrape(exporter);
+            assertEquals(calls.get(), before + 1);
+        } finally {
+            exporter.stop();
+        }
+    }
+
+    private static String scrape(PrometheusMetricsExporter exporter) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.writeMetrics(ResponseFormat.TEXT, out);
+        return out.toString("UTF-8");
+    }
+}
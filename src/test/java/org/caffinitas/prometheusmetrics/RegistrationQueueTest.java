@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class RegistrationQueueTest {
+    @Test
+    public void testEvents() throws Exception {
+        Map<String, Metric> mapped = new LinkedHashMap<>();
+        AtomicInteger batches = new AtomicInteger();
+        RegistrationQueue queue = new RegistrationQueue(
+                (name, metric) -> {
+                    if (metric != null)
+                        mapped.put(name, metric);
+                    else
+                        mapped.remove(name);
+                },
+                batch -> {
+                    batches.incrementAndGet();
+                    batch.run();
+                });
+        try {
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int thread = t;
+                threads.add(new Thread(() -> {
+                    for (int i = 0; i < 10000; i++) {
+                        queue.added("t" + thread + ".m" + i, new Counter());
+                        if (i % 2 == 0)
+                            queue.removed("t" + thread + ".m" + i);
+                    }
+                }));
+            }
+            threads.forEach(Thread::start);
+            for (Thread thread : threads)
+                thread.join();
+
+            assertTrue(queue.await(10, TimeUnit.SECONDS));
+            assertEquals(mapped.size(), 4 * 5000);
+            assertEquals(queue.lagSeconds(), 0d);
+            assertTrue(batches.get() < 4 * 15000);
+        } finally {
+            queue.stop();
+        }
+    }
+
+    @Test
+    public void testLagWhileMapping() throws Exception {
+        CountDownLatch mapping = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RegistrationQueue queue = new RegistrationQueue(
+                (name, metric) -> {
+                    mapping.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                },
+                Runnable::run);
+        try {
+            queue.added("m", new Counter());
+            mapping.await();
+            Thread.sleep(100L);
+
+            // the event has been taken off the queue but is not mapped yet
+            assertTrue(queue.lagSeconds() >= 0.1d, Double.toString(queue.lagSeconds()));
+
+            release.countDown();
+            assertTrue(queue.await(10, TimeUnit.SECONDS));
+            assertEquals(queue.lagSeconds(), 0d);
+        } finally {
+            release.countDown();
+            queue.stop();
+        }
+    }
+
+    @Test
+    public void testAwaitAfterStop() throws Exception {
+        RegistrationQueue queue = new RegistrationQueue((name, metric) -> { }, Runnable::run);
+        queue.stop();
+
+        long start = System.nanoTime();
+        assertFalse(queue.await(10, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class ScrapeCacheTest {
+    @Test
+    public void testIncompleteResponseNotCached() throws Exception {
+        ScrapeCache cache = new ScrapeCache(60000);
+        TestLoad truncated = new TestLoad(false);
+        byte[] first = cache.get("text", truncated, Runnable::run).future.get();
+
+        // a later scrape collects again instead of getting the truncated response
+        TestLoad complete = new TestLoad(true);
+        byte[] second = cache.get("text", complete, Runnable::run).future.get();
+        assertEquals(truncated.collected.get(), 1);
+        assertEquals(complete.collected.get(), 1);
+        assertFalse(first == second);
+
+        assertSame(cache.get("text", new TestLoad(true), Runnable::run).future.get(), second);
+    }
+
+    @Test
+    public void testCancelWhenAllWaitersGone() throws Exception {
+        ScrapeCache cache = new ScrapeCache(60000);
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        TestLoad load = new TestLoad(true);
+        ScrapeCache.Waiter first = cache.get("text", load, tasks::add);
+        ScrapeCache.Waiter second = cache.get("text", new TestLoad(true), tasks::add);
+        assertEquals(tasks.size(), 1);
+
+        first.abandon();
+        first.abandon();
+        assertFalse(load.cancelled);
+        second.abandon();
+        assertTrue(load.cancelled);
+
+        // a new scrape does not join the cancelled collection
+        TestLoad next = new TestLoad(true);
+        ScrapeCache.Waiter third = cache.get("text", next, tasks::add);
+        assertEquals(tasks.size(), 2);
+        for (Runnable task; (task = tasks.poll()) != null; )
+            task.run();
+        assertEquals(next.collected.get(), 1);
+        assertTrue(third.future.isDone());
+    }
+
+    private static final class TestLoad implements ScrapeCache.Load {
+        final boolean complete;
+        final AtomicInteger collected = new AtomicInteger();
+        volatile boolean cancelled;
+
+        TestLoad(boolean complete) {
+            this.complete = complete;
+        }
+
+        @Override
+        public byte[] collect() {
+            collected.incrementAndGet();
+            return new byte[]{1, 2, 3};
+        }
+
+        @Override
+        public boolean complete() {
+            return complete;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
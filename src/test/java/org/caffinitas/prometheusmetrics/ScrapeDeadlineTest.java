@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import io.prometheus.client.Prometheus;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class ScrapeDeadlineTest {
+    private static final MetricsContainer FAMILY = new MetricsContainer("Family", "from codahale", Prometheus.MetricType.GAUGE);
+
+    @Test
+    public void testInvalidTimeouts() {
+        for (String timeout : new String[]{"Infinity", "-Infinity", "NaN", "-1", "0", "foo", ""})
+            assertFalse(deadline(timeout).skip(FAMILY), timeout);
+    }
+
+    @Test
+    public void testHugeTimeout() {
+        // does not overflow the deadline
+        assertFalse(deadline("1e300").skip(FAMILY));
+        assertFalse(deadline(Long.toString(Long.MAX_VALUE)).skip(FAMILY));
+    }
+
+    @Test
+    public void testCancel() {
+        ScrapeDeadline deadline = deadline("10");
+        assertFalse(deadline.skip(FAMILY));
+        deadline.cancel();
+        assertTrue(deadline.skip(FAMILY));
+        assertEquals(deadline.dropped(), 1);
+    }
+
+    private static ScrapeDeadline deadline(String timeout) {
+        HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/metrics");
+        req.headers().set(ScrapeDeadline.TIMEOUT_HEADER, timeout);
+        return ScrapeDeadline.forRequest(req, new ExporterConfig());
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import io.netty.buffer.AbstractByteBufAllocator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.prometheus.client.Prometheus;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+public class ScrapeInputTest {
+    @Test
+    public void testDisconnectWhilePaused() {
+        TrackingAllocator alloc = new TrackingAllocator();
+        EmbeddedChannel channel = channel(alloc);
+        try {
+            ScrapeInput input = input(channel, Runnable::run);
+            input.start();
+
+            // production paused with a partially filled chunk in the stream
+            assertTrue(alloc.unreleased() > 0);
+
+            input.close();
+            assertEquals(alloc.unreleased(), 0);
+        } finally {
+            channel.finish();
+        }
+    }
+
+    @Test
+    public void testDisconnectWhileProducing() throws Exception {
+        TrackingAllocator alloc = new TrackingAllocator();
+        EmbeddedChannel channel = channel(alloc);
+        try {
+            Queue<Runnable> tasks = new ArrayDeque<>();
+            ScrapeInput input = input(channel, tasks::add);
+            input.start();
+            tasks.poll().run();
+
+            // taking a chunk schedules the producer again
+            HttpContent content = input.readChunk(channel.pipeline().firstContext());
+            assertNotNull(content);
+            content.release();
+            Runnable producer = tasks.poll();
+            assertNotNull(producer);
+
+            // the producer is scheduled, so it has to release the stream
+            input.close();
+            producer.run();
+            assertEquals(alloc.unreleased(), 0);
+        } finally {
+            channel.finish();
+        }
+    }
+
+    private static EmbeddedChannel channel(TrackingAllocator alloc) {
+        EmbeddedChannel channel = new EmbeddedChannel(new ChunkedWriteHandler());
+        channel.config().setAllocator(alloc);
+        return channel;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ScrapeInput input(EmbeddedChannel channel, Executor executor) {
+        List<MetricsContainer> containers = new ArrayList<>();
+        for (int c = 0; c < 10; c++) {
+            MetricsContainer container = new MetricsContainer("Family" + c, "from codahale", Prometheus.MetricType.GAUGE);
+            for (int i = 0; i < 100; i++)
+                container.addMetric("family" + c + ".series" + i, (LongValueGauge) () -> 42L, "series", "s" + i);
+            containers.add(container);
+        }
+
+        ExporterConfig config = new ExporterConfig();
+        config.chunkSize = 256;
+        config.maxPendingChunks = 1;
+        ChannelHandlerContext ctx = channel.pipeline().firstContext();
+        return new ScrapeInput(ctx, executor, containers, ResponseFormat.TEXT,
+                (container, out) -> {
+                    try {
+                        ResponseFormat.TEXT.writeMetric(container, out);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                },
+                config);
+    }
+
+    /**
+     * Pooled allocator that remembers all buffers it handed out.
+     */
+    private static final class TrackingAllocator extends AbstractByteBufAllocator {
+        private final PooledByteBufAllocator pooled = new PooledByteBufAllocator(true);
+        private final List<ByteBuf> buffers = new ArrayList<>();
+
+        @Override
+        protected ByteBuf newHeapBuffer(int initialCapacity, int maxCapacity) {
+            return track(pooled.heapBuffer(initialCapacity, maxCapacity));
+        }
+
+        @Override
+        protected ByteBuf newDirectBuffer(int initialCapacity, int maxCapacity) {
+            return track(pooled.directBuffer(initialCapacity, maxCapacity));
+        }
+
+        public boolean isDirectBufferPooled() {
+            return true;
+        }
+
+        private synchronized ByteBuf track(ByteBuf buf) {
+            buffers.add(buf);
+            return buf;
+        }
+
+        synchronized int unreleased() {
+            int n = 0;
+            for (ByteBuf buf : buffers)
+                if (buf.refCnt() > 0)
+                    n++;
+            return n;
+        }
+    }
+}
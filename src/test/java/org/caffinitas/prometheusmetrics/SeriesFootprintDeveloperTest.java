@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Timer;
+import io.prometheus.client.Prometheus;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Heap used per series by the series metadata of a Cassandra node with 2 x 1000 tables, once with
+ * the interned {@link LabelSet}s and once with the per-series {@code String[][]} label arrays of
+ * the baseline. The metric objects are shared, so only the exporter's own structures are measured.
+ * Not run as part of the build, run it explicitly via
+ * {@code mvn test -Dtest=SeriesFootprintDeveloperTest}.
+ */
+public class SeriesFootprintDeveloperTest {
+    @Test
+    public void benchmark() throws Exception {
+        MetricMappings mappings = new MetricMappings(MetricMappingsTest.cassandraConfig().exclusions,
+                MetricMappingsTest.cassandraConfig().mappings);
+        List<String> names = MetricMappingsTest.cassandraMetricNames(1000);
+        Counter counter = new Counter();
+        Timer timer = new Timer();
+
+        for (int round = 0; round < 3; round++) {
+            long base = usedHeap();
+            Map<String, MetricsContainer> interned = new HashMap<>();
+            int series = 0;
+            for (String name : names) {
+                MetricMappings.Match match = mappings.match(name);
+                if (match == null)
+                    continue;
+                boolean summary = isSummary(name);
+                interned.computeIfAbsent(match.name(), n -> new MetricsContainer(n, "",
+                        summary ? Prometheus.MetricType.SUMMARY : Prometheus.MetricType.COUNTER))
+                        .addMetric(name, summary ? timer : counter, match.labels());
+                series++;
+            }
+            long internedBytes = usedHeap() - base;
+            // keep the containers reachable until they have been measured
+            int families = interned.size();
+            interned = null;
+
+            base = usedHeap();
+            Map<String, List<LegacySeries>> legacy = new HashMap<>();
+            for (String name : names) {
+                MetricMappings.Match match = mappings.match(name);
+                if (match == null)
+                    continue;
+                legacy.computeIfAbsent(match.name(), n -> new ArrayList<>())
+                        .add(new LegacySeries(name, isSummary(name) ? timer : counter, match.labels()));
+            }
+            long legacyBytes = usedHeap() - base;
+            families -= legacy.size();
+            legacy = null;
+
+            System.out.printf("round %d: %d series, interned %d bytes/series, baseline %d bytes/series%s%n",
+                    round, series, internedBytes / series, legacyBytes / series, families != 0 ? " (family mismatch)" : "");
+        }
+    }
+
+    private static boolean isSummary(String name) {
+        return name.contains("Latency") || name.contains("Histogram");
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * A series as {@link MetricInfo} stored it before label sets were interned: its own
+     * {@code String[][]} label pairs, encoded on every scrape.
+     */
+    private static final class LegacySeries {
+        final String sourceName;
+        final Metric metric;
+        final String[][] labels;
+
+        LegacySeries(String sourceName, Metric metric, String[][] labels) {
+            this.sourceName = sourceName;
+            this.metric = metric;
+            this.labels = labels;
+        }
+    }
+}
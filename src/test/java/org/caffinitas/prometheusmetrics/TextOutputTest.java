@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import io.prometheus.client.Collector;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+
+public class TextOutputTest {
+    @Test
+    public void testSpecialValues() throws Exception {
+        double[] values = {
+                0d, -0d, 1d, -1d, 0.5d, 0.001d, 0.000999d, 1e7d, 9999999d, 1e7d + 0.5d, 1.5e-3d, 123.456d,
+                0.1d + 0.2d, 1d / 3d, Math.PI, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.MIN_VALUE, Double.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, 1L << 53, (1L << 53) - 1,
+                -(1L << 53) + 1, 1e15d, 1e16d, 123456789012345d, 0.001d * ResponseFormat.FACTOR_TIMER
+        };
+        for (double v : values) {
+            assertFormat(v);
+        }
+        long[] longs = {0L, 1L, -1L, 9999999L, 10000000L, 10000001L, 123456789L, 1000000000000L,
+                (1L << 53) - 1, 1L << 53, (1L << 53) + 1, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long v : longs) {
+            assertFormat(v);
+        }
+    }
+
+    @Test
+    public void testRandomValues() throws Exception {
+        Random random = new Random(42L);
+        for (int i = 0; i < 200000; i++) {
+            // integral values of all magnitudes
+            assertFormat(random.nextLong() >> random.nextInt(64));
+            assertFormat((double) (random.nextLong() >> random.nextInt(64)));
+            // short decimals, like rates and ratios
+            assertFormat(random.nextInt(100000000) / Math.pow(10, random.nextInt(12)));
+            // timer quantiles converted from nanoseconds
+            assertFormat(random.nextInt(1000000000) * ResponseFormat.FACTOR_TIMER);
+            // arbitrary doubles
+            assertFormat(random.nextDouble() * Math.pow(10, random.nextInt(20) - 10));
+            assertFormat(Double.longBitsToDouble(random.nextLong()));
+        }
+    }
+
+    private static void assertFormat(double v) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TextOutput out = new TextOutput(bytes, 32);
+        out.writeValue(v);
+        out.flush();
+        assertEquals(bytes.toString("US-ASCII"), Collector.doubleToGoString(v), "for " + v);
+    }
+
+    private static void assertFormat(long v) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TextOutput out = new TextOutput(bytes, 32);
+        out.writeValue(v);
+        out.flush();
+        assertEquals(bytes.toString("US-ASCII"), Collector.doubleToGoString((double) v), "for " + v);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.caffinitas.prometheusmetrics;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class ThreadInfoMetricsTest {
+    @Test
+    public void testParseThreadName() {
+        assertEquals(ThreadInfoMetrics.parseThreadName("ReadStage-3"), new String[]{"ReadStage", "3"});
+        assertEquals(ThreadInfoMetrics.parseThreadName("CompactionExecutor:12"), new String[]{"CompactionExecutor", "12"});
+        assertEquals(ThreadInfoMetrics.parseThreadName("GossipStage1"), new String[]{"GossipStage", "1"});
+        assertEquals(ThreadInfoMetrics.parseThreadName("main"), new String[]{null, "main"});
+        assertEquals(ThreadInfoMetrics.parseThreadName("42"), new String[]{null, "42"});
+    }
+
+    @Test
+    public void testThreadSeries() throws Exception {
+        ThreadInfoMetrics metrics = new ThreadInfoMetrics();
+        CountDownLatch done = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                done.await();
+            } catch (InterruptedException ignored) {
+            }
+        }, "ThreadInfoTest-5");
+        thread.start();
+        try {
+            assertEquals(series(metrics.getMetrics(), "ThreadInfoTest", "5"), 8);
+
+            // steady state reuses the series, unless other threads of the JVM come and go
+            boolean reused = false;
+            Readout previous = (Readout) metrics.getMetrics();
+            for (int i = 0; i < 10 && !reused; i++) {
+                Readout current = (Readout) metrics.getMetrics();
+                reused = current.series == previous.series;
+                previous = current;
+            }
+            assertTrue(reused);
+        } finally {
+            done.countDown();
+            thread.join();
+        }
+
+        assertEquals(series(metrics.getMetrics(), "ThreadInfoTest", "5"), 0);
+    }
+
+    @Test
+    public void testAggregation() throws Exception {
+        ThreadInfoMetrics metrics = new ThreadInfoMetrics(true, 2);
+        CountDownLatch done = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    done.await();
+                } catch (InterruptedException ignored) {
+                }
+            }, "ThreadPoolTest-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        try {
+            // sums over the family by type or pool must not count any thread twice
+            Set<String> typeAndPool = new HashSet<>();
+            Long poolThreads = null;
+            Readout readout = (Readout) metrics.getMetrics();
+            for (int i = 0; i < readout.size(); i++) {
+                LabelSet labels = readout.get(i).labels;
+                assertEquals(labels.size(), 2);
+                assertEquals(labels.name(1), "pool");
+                assertTrue(typeAndPool.add(labels.value(0) + '/' + labels.value(1)));
+                if (labels.value(1).equals("ThreadPoolTest") && labels.value(0).equals("threads"))
+                    poolThreads = readout.longValue(i);
+            }
+            assertEquals(poolThreads, Long.valueOf(3L));
+
+            List<MetricInfo> topThreads = metrics.topThreads().getMetrics();
+            assertEquals(topThreads.size(), 2 * 8);
+            for (MetricInfo metric : topThreads)
+                assertEquals(metric.labels.name(metric.labels.size() - 1), "thread");
+        } finally {
+            done.countDown();
+            for (Thread thread : threads)
+                thread.join();
+        }
+
+        for (MetricInfo metric : metrics.getMetrics())
+            assertFalse(metric.labels.size() == 2 && metric.labels.value(1).equals("ThreadPoolTest"));
+    }
+
+    @Test
+    public void testConcurrentReadouts() throws Exception {
+        ThreadInfoMetrics metrics = new ThreadInfoMetrics(true, 2);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                done.await();
+            } catch (InterruptedException ignored) {
+            }
+        }, "ReadoutTest-1");
+        thread.start();
+        try {
+            Readout first = (Readout) metrics.getMetrics();
+            long[] values = new long[first.size()];
+            for (int i = 0; i < values.length; i++)
+                values[i] = first.longValue(i);
+
+            // another scrape does not change the values of the first one
+            metrics.getMetrics();
+            metrics.getMetrics();
+            for (int i = 0; i < values.length; i++)
+                assertEquals(first.longValue(i), values[i]);
+        } finally {
+            done.countDown();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void testTopThreadsDisabled() {
+        assertNull(new ThreadInfoMetrics(true, 0).topThreads());
+        assertNull(new ThreadInfoMetrics(false, 2).topThreads());
+    }
+
+    private static int series(List<MetricInfo> metrics, String pool, String thread) {
+        int count = 0;
+        for (MetricInfo metric : metrics) {
+            LabelSet labels = metric.labels;
+            assertTrue(metric.metric instanceof LongValueGauge);
+            if (labels.size() == 3 && labels.value(1).equals(pool) && labels.value(2).equals(thread))
+                count++;
+            else if (labels.size() == 3)
+                assertEquals(labels.name(1), "pool");
+            else
+                assertNull(labels.size() == 2 ? null : labels);
+        }
+        return count;
+    }
+}